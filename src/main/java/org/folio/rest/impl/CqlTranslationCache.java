@@ -0,0 +1,158 @@
+package org.folio.rest.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the SQL translation of CQL queries by the shape of the query
+ *
+ * Clients mostly send a few shapes of query that only differ by the IDs
+ * searched for, e.g. userId==X and status.name==Open. UUIDs compared using
+ * = or == are replaced by placeholders that are also UUIDs to give the shape.
+ * The shape is translated once and the UUIDs of each query are substituted
+ * into the resulting SQL, so that the query does not need to be parsed again.
+ *
+ * The terms are substituted as text rather than bound as parameters, so only
+ * UUIDs are, as they need no quoting or escaping and cannot be mistaken for
+ * anything else in the SQL. Any other term is kept as part of the shape, and
+ * queries that already contain the placeholder text are not cached.
+ */
+public class CqlTranslationCache {
+
+  @FunctionalInterface
+  public interface Translator {
+    /**
+     * @return SQL for the query, or null when the translator cannot
+     * translate it
+     */
+    String translate(String cql) throws Exception;
+  }
+
+  //A term following a relation, either quoted or up to the next whitespace
+  private static final Pattern TERM = Pattern.compile(
+    "(==|<>|<=|>=|=|<|>)(\\s*)(\"[^\"]*\"|[^\\s()\"]+)");
+
+  //Shapes are not expected to change, but are evicted when not used
+  private static final long TIME_TO_LIVE_MILLISECONDS = 60 * 60 * 1000;
+
+  private static final Pattern UUID = Pattern.compile(
+    "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}" +
+      "-[0-9a-fA-F]{12}$");
+
+  private static final String PLACEHOLDER_PREFIX = "00000000-0000-0000-0000-";
+
+  private static final Pattern PLACEHOLDER = Pattern.compile(
+    PLACEHOLDER_PREFIX + "[0-9]{12}");
+
+  private final Translator translator;
+  private final ExpiringCache<String, Optional<String>> translations;
+
+  public CqlTranslationCache(int maximumShapes, Translator translator) {
+    this.translator = translator;
+
+    translations = new ExpiringCache<>(maximumShapes, TIME_TO_LIVE_MILLISECONDS,
+      System::currentTimeMillis);
+  }
+
+  public String translate(String cql) throws Exception {
+    if(cql == null || cql.trim().isEmpty()
+      || cql.contains(PLACEHOLDER_PREFIX)) {
+
+      return translator.translate(cql);
+    }
+
+    List<String> terms = new ArrayList<>();
+    List<String> placeholders = new ArrayList<>();
+    StringBuffer shape = new StringBuffer();
+
+    Matcher matcher = TERM.matcher(cql);
+
+    while(matcher.find()) {
+      String term = matcher.group(3);
+
+      String unquoted = term.startsWith("\"")
+        ? term.substring(1, term.length() - 1)
+        : term;
+
+      if(isEquality(matcher.group(1)) && UUID.matcher(unquoted).matches()) {
+        String placeholder = placeholder(terms.size());
+
+        matcher.appendReplacement(shape, Matcher.quoteReplacement(
+          matcher.group(1) + matcher.group(2) + placeholder));
+
+        terms.add(unquoted);
+        placeholders.add(placeholder);
+      }
+    }
+
+    matcher.appendTail(shape);
+
+    String key = shape.toString();
+
+    Optional<String> template = translations.get(key);
+
+    if(template == null) {
+      long generation = translations.generation();
+
+      String translated = translator.translate(key);
+
+      //The translator must use each term as is, for the substitution to be valid
+      for(int index = 0; translated != null && index < terms.size(); index++) {
+        if(!translated.contains(placeholders.get(index))) {
+          return translator.translate(cql);
+        }
+      }
+
+      template = Optional.ofNullable(translated);
+      translations.put(key, template, generation);
+    }
+
+    return template.map(sql -> substitute(sql, placeholders, terms))
+      .orElse(null);
+  }
+
+  public long getHits() {
+    return translations.getHits();
+  }
+
+  public long getMisses() {
+    return translations.getMisses();
+  }
+
+  private static boolean isEquality(String relation) {
+    return relation.equals("==") || relation.equals("=");
+  }
+
+  /**
+   * Replaces every placeholder in a single pass, so that a substituted
+   * term is never searched for placeholders
+   */
+  private static String substitute(
+    String sql,
+    List<String> placeholders,
+    List<String> terms) {
+
+    StringBuffer substituted = new StringBuffer();
+
+    Matcher matcher = PLACEHOLDER.matcher(sql);
+
+    while(matcher.find()) {
+      int index = placeholders.indexOf(matcher.group());
+
+      matcher.appendReplacement(substituted, Matcher.quoteReplacement(
+        index >= 0 ? terms.get(index) : matcher.group()));
+    }
+
+    matcher.appendTail(substituted);
+
+    return substituted.toString();
+  }
+
+  private static String placeholder(int index) {
+    //Fixed length, so that one placeholder cannot be part of another
+    return PLACEHOLDER_PREFIX + String.format("%012d", index);
+  }
+}
@@ -0,0 +1,139 @@
+package org.folio.rest.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * In-memory cache bounded by both size (least recently used entries are
+ * evicted first) and age, which counts hits, misses and evictions
+ *
+ * Invalidation moves the cache to a new generation, values read from storage
+ * before an invalidation are not cached, so that a read racing with a write
+ * cannot put an outdated value back into the cache.
+ */
+public class ExpiringCache<K, V> {
+
+  private static class Entry<V> {
+    private final V value;
+    private final long expires;
+
+    private Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  private final int maximumSize;
+  private final long timeToLiveMilliseconds;
+  private final LongSupplier clock;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private long generation = 0;
+
+  //Access ordered, so the eldest entry is the least recently used
+  private final LinkedHashMap<K, Entry<V>> entries =
+    new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        if(size() > maximumSize) {
+          evictions.increment();
+          return true;
+        }
+
+        return false;
+      }
+    };
+
+  /**
+   * @param clock current time in milliseconds
+   */
+  public ExpiringCache(
+    int maximumSize,
+    long timeToLiveMilliseconds,
+    LongSupplier clock) {
+
+    this.maximumSize = maximumSize;
+    this.timeToLiveMilliseconds = timeToLiveMilliseconds;
+    this.clock = clock;
+  }
+
+  /**
+   * @return the cached value, or null when there is none or it has expired
+   */
+  public synchronized V get(K key) {
+    Entry<V> entry = entries.get(key);
+
+    if(entry != null && entry.expires <= clock.getAsLong()) {
+      entries.remove(key);
+      evictions.increment();
+      entry = null;
+    }
+
+    if(entry == null) {
+      misses.increment();
+      return null;
+    }
+
+    hits.increment();
+    return entry.value;
+  }
+
+  /**
+   * Taken before reading a value from storage, to be passed to
+   * {@link #put(Object, Object, long)}
+   */
+  public synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * @param generation taken (using {@link #generation()}) before the value
+   * was read, the value is not cached if the cache has been invalidated since
+   */
+  public synchronized void put(K key, V value, long generation) {
+    if(this.generation == generation) {
+      entries.put(key, new Entry<>(value,
+        clock.getAsLong() + timeToLiveMilliseconds));
+    }
+  }
+
+  public synchronized void invalidate(K key) {
+    generation++;
+    entries.remove(key);
+  }
+
+  public synchronized void invalidateIf(Predicate<K> predicate) {
+    generation++;
+
+    Iterator<K> keys = entries.keySet().iterator();
+
+    while(keys.hasNext()) {
+      if(predicate.test(keys.next())) {
+        keys.remove();
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+}
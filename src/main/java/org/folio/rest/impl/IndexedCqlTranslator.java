@@ -0,0 +1,455 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.json.Json;
+import org.z3950.zing.cql.*;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Translates simple CQL queries into SQL that matches the indexes created
+ * for a table in template_create_tenant.sql
+ *
+ * CQL2PgJSON generates regular expression matches for every term, which
+ * PostgreSQL cannot satisfy from a B-tree index. Queries made up only of
+ * plain terms on indexed properties, combined with and (and optionally sorted
+ * by indexed properties) are translated here into the same expressions (or
+ * typed columns) the indexes are defined on. Anything else returns null, so
+ * that the caller can fall back to CQL2PgJSON.
+ *
+ * Queries that cannot be translated can still be narrowed by the equality
+ * terms every matching record must satisfy, so that an index limits the
+ * records the CQL2PgJSON conditions are applied to.
+ *
+ * Only exact matches (==) are translated into equality, as = in CQL2PgJSON is
+ * a case insensitive match of words within the value (e.g. status.name=open
+ * finds Open loans). The exception is a UUID compared with a uuid column,
+ * where both mean the same thing.
+ */
+public class IndexedCqlTranslator {
+
+  private static final Pattern PLAIN_TERM = Pattern.compile("^[^*?^\\\\\\s\"]+$");
+
+  private static final String EXACT_RELATION = "==";
+  private static final String WORD_RELATION = "=";
+
+  private static final Set<String> RANGE_RELATIONS =
+    new HashSet<>(Arrays.asList("<", ">", "<=", ">="));
+
+  //Terms that can be cast to the type of a column, others are compared
+  //with the JSON, as the column is null when the value could not be cast
+  private static final Map<String, Pattern> COLUMN_TYPES = new HashMap<>();
+
+  static {
+    COLUMN_TYPES.put("text", Pattern.compile(".*"));
+
+    COLUMN_TYPES.put("uuid", Pattern.compile(
+      "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}" +
+        "-[0-9a-fA-F]{12}$"));
+
+    //Only with an offset, so that the value does not depend on the time zone
+    COLUMN_TYPES.put("timestamptz", Pattern.compile(
+      "^\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}(\\.\\d+)?" +
+        "(Z|[+-]\\d{2}(:?\\d{2})?)$"));
+  }
+
+  private final String table;
+  private final Set<String> indexedProperties = new HashSet<>();
+  private final Set<String> containmentProperties = new HashSet<>();
+  private final Map<String, String> columns = new HashMap<>();
+  private final Map<String, String> columnTypes = new HashMap<>();
+
+  public IndexedCqlTranslator(String table) {
+    this.table = table;
+  }
+
+  /**
+   * A property with a B-tree expression index on the text value,
+   * e.g. status.name is indexed as (jsonb->'status'->>'name')
+   */
+  public IndexedCqlTranslator withIndexedProperty(String property) {
+    indexedProperties.add(property);
+    return this;
+  }
+
+  /**
+   * A property copied into a typed column with a B-tree index,
+   * e.g. userId is copied into user_id (a uuid)
+   *
+   * @param type text, uuid or timestamptz
+   */
+  public IndexedCqlTranslator withColumn(
+    String property,
+    String column,
+    String type) {
+
+    if(!COLUMN_TYPES.containsKey(type)) {
+      throw new IllegalArgumentException(
+        String.format("Unsupported column type: %s", type));
+    }
+
+    indexedProperties.add(property);
+    columns.put(property, column);
+    columnTypes.put(property, type);
+    return this;
+  }
+
+  /**
+   * A string property that can be matched exactly using the
+   * GIN (jsonb_path_ops) index on the whole record
+   */
+  public IndexedCqlTranslator withContainmentProperty(String property) {
+    containmentProperties.add(property);
+    return this;
+  }
+
+  /**
+   * @return a WHERE (and optional ORDER BY) clause for the query, an empty
+   * string when there is no query, or null when the query cannot be
+   * translated onto the indexes
+   */
+  public String toSql(String cql) {
+    if(cql == null || cql.trim().isEmpty()) {
+      return "";
+    }
+
+    CQLNode node;
+
+    try {
+      node = new CQLParser().parse(cql);
+    }
+    catch(Exception e) {
+      return null;
+    }
+
+    String orderBy = "";
+
+    if(node instanceof CQLSortNode) {
+      CQLSortNode sortNode = (CQLSortNode) node;
+
+      orderBy = orderBy(sortNode.getSortIndexes());
+
+      if(orderBy == null) {
+        return null;
+      }
+
+      node = sortNode.getSubtree();
+    }
+
+    String where = where(node);
+
+    if(where == null) {
+      return null;
+    }
+
+    return String.format("WHERE %s%s", where, orderBy);
+  }
+
+  /**
+   * @return the condition (without WHERE) for a query that has no sorting,
+   * an empty string when there is no query, or null when the query cannot
+   * be translated onto the indexes
+   */
+  public String whereClause(String cql) {
+    if(cql == null || cql.trim().isEmpty()) {
+      return "";
+    }
+
+    try {
+      return where(new CQLParser().parse(cql));
+    }
+    catch(Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the condition (and optional ORDER BY) for a query that cannot be
+   * fully translated, produced by the fallback translator and preceded by
+   * the equality terms on indexed properties that the query is combined with
+   * using and, so that the rows can be found using an index
+   */
+  public String narrowed(
+    String cql,
+    CqlTranslationCache.Translator fallback) throws Exception {
+
+    String condition = fallback.translate(cql);
+
+    CQLNode node;
+
+    try {
+      node = new CQLParser().parse(cql);
+    }
+    catch(Exception e) {
+      return condition;
+    }
+
+    String orderBy = "";
+
+    if(node instanceof CQLSortNode) {
+      node = ((CQLSortNode) node).getSubtree();
+
+      //The fallback appends the sorting to the condition for the subtree
+      String unsorted = fallback.translate(node.toCQL());
+
+      if(unsorted == null || condition == null
+        || !condition.startsWith(unsorted)) {
+        return condition;
+      }
+
+      orderBy = condition.substring(unsorted.length());
+      condition = unsorted;
+    }
+
+    List<String> conditions = new ArrayList<>();
+
+    narrowingTerms(node, conditions);
+
+    if(conditions.isEmpty() || condition == null) {
+      return condition;
+    }
+
+    conditions.add(String.format("(%s)", condition));
+
+    return String.join(" AND ", conditions) + orderBy;
+  }
+
+  private void narrowingTerms(CQLNode node, List<String> conditions) {
+    if(node instanceof CQLAndNode) {
+      CQLAndNode and = (CQLAndNode) node;
+
+      narrowingTerms(and.getLeftOperand(), conditions);
+      narrowingTerms(and.getRightOperand(), conditions);
+    }
+    else if(node instanceof CQLTermNode) {
+      CQLTermNode term = (CQLTermNode) node;
+
+      //Ranges are left to the fallback, which compares the values as text
+      if(RANGE_RELATIONS.contains(term.getRelation().getBase())) {
+        return;
+      }
+
+      String condition = term(term);
+
+      if(condition != null) {
+        conditions.add(condition);
+      }
+    }
+  }
+
+  /**
+   * @return whether the query asks for the records to be sorted
+   */
+  public static boolean hasSort(String cql) {
+    if(cql == null || cql.trim().isEmpty()) {
+      return false;
+    }
+
+    try {
+      return new CQLParser().parse(cql) instanceof CQLSortNode;
+    }
+    catch(Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the property and term of each clause when the query is only
+   * equality terms combined with and (and has no sorting), otherwise null
+   */
+  public Map<String, String> equalityTerms(String cql) {
+    if(cql == null || cql.trim().isEmpty()) {
+      return null;
+    }
+
+    try {
+      Map<String, String> terms = new HashMap<>();
+
+      return equalityTerms(new CQLParser().parse(cql), terms) ? terms : null;
+    }
+    catch(Exception e) {
+      return null;
+    }
+  }
+
+  private boolean equalityTerms(CQLNode node, Map<String, String> terms) {
+    if(node instanceof CQLAndNode) {
+      CQLAndNode and = (CQLAndNode) node;
+
+      return equalityTerms(and.getLeftOperand(), terms)
+        && equalityTerms(and.getRightOperand(), terms);
+    }
+
+    if(node instanceof CQLTermNode) {
+      CQLTermNode term = (CQLTermNode) node;
+
+      return isEquality(term.getIndex(), term.getRelation().getBase(),
+        term.getTerm())
+        && PLAIN_TERM.matcher(term.getTerm()).matches()
+        && terms.put(term.getIndex(), term.getTerm()) == null;
+    }
+
+    return false;
+  }
+
+  /**
+   * @return each clause by property when the query is only plain terms
+   * compared using = or == combined with and (and has no sorting), otherwise
+   * null, so that the caller can decide which word matches mean equality
+   */
+  Map<String, CQLTermNode> plainTerms(String cql) {
+    if(cql == null || cql.trim().isEmpty()) {
+      return null;
+    }
+
+    try {
+      Map<String, CQLTermNode> terms = new HashMap<>();
+
+      return plainTerms(new CQLParser().parse(cql), terms) ? terms : null;
+    }
+    catch(Exception e) {
+      return null;
+    }
+  }
+
+  private boolean plainTerms(CQLNode node, Map<String, CQLTermNode> terms) {
+    if(node instanceof CQLAndNode) {
+      CQLAndNode and = (CQLAndNode) node;
+
+      return plainTerms(and.getLeftOperand(), terms)
+        && plainTerms(and.getRightOperand(), terms);
+    }
+
+    if(node instanceof CQLTermNode) {
+      CQLTermNode term = (CQLTermNode) node;
+      String relation = term.getRelation().getBase();
+
+      return (EXACT_RELATION.equals(relation) || WORD_RELATION.equals(relation))
+        && PLAIN_TERM.matcher(term.getTerm()).matches()
+        && terms.put(term.getIndex(), term) == null;
+    }
+
+    return false;
+  }
+
+  String expression(String property) {
+    String[] path = property.split("\\.");
+
+    StringBuilder expression = new StringBuilder(table).append(".jsonb");
+
+    for(int index = 0; index < path.length - 1; index++) {
+      expression.append("->'").append(path[index]).append("'");
+    }
+
+    return expression.append("->>'")
+      .append(path[path.length - 1]).append("'").toString();
+  }
+
+  private String where(CQLNode node) {
+    if(node instanceof CQLAndNode) {
+      CQLAndNode and = (CQLAndNode) node;
+
+      String left = where(and.getLeftOperand());
+      String right = where(and.getRightOperand());
+
+      if(left == null || right == null) {
+        return null;
+      }
+
+      return String.format("%s AND %s", left, right);
+    }
+
+    if(node instanceof CQLTermNode) {
+      return term((CQLTermNode) node);
+    }
+
+    return null;
+  }
+
+  private String term(CQLTermNode node) {
+    String property = node.getIndex();
+    String relation = node.getRelation().getBase();
+    String value = node.getTerm();
+
+    if(!PLAIN_TERM.matcher(value).matches()) {
+      return null;
+    }
+
+    if(indexedProperties.contains(property)) {
+      boolean equality = isEquality(property, relation, value);
+
+      if(!equality && !RANGE_RELATIONS.contains(relation)) {
+        return null;
+      }
+
+      String operator = equality ? "=" : relation;
+
+      if(columns.containsKey(property)
+        && COLUMN_TYPES.get(columnTypes.get(property)).matcher(value).matches()) {
+
+        return String.format("%s.%s %s %s::%s", table, columns.get(property),
+          operator, Sql.literal(value), columnTypes.get(property));
+      }
+
+      return String.format("%s %s %s", expression(property), operator,
+        Sql.literal(value));
+    }
+    else if(containmentProperties.contains(property)
+      && EXACT_RELATION.equals(relation)) {
+
+      return String.format("%s.jsonb @> %s", table,
+        Sql.literal(containment(property, value)));
+    }
+
+    return null;
+  }
+
+  /**
+   * @return whether the relation can be translated into equality
+   */
+  boolean isEquality(String property, String relation, String value) {
+    if(EXACT_RELATION.equals(relation)) {
+      return true;
+    }
+
+    //A uuid column compares regardless of case, and a UUID is a single word
+    return WORD_RELATION.equals(relation)
+      && "uuid".equals(columnTypes.get(property))
+      && COLUMN_TYPES.get("uuid").matcher(value).matches();
+  }
+
+  private String containment(String property, String value) {
+    String[] path = property.split("\\.");
+
+    String json = Json.encode(value);
+
+    for(int index = path.length - 1; index >= 0; index--) {
+      json = String.format("{\"%s\":%s}", path[index], json);
+    }
+
+    return json;
+  }
+
+  private String orderBy(List<ModifierSet> sortIndexes) {
+    StringJoiner orderBy = new StringJoiner(", ", " ORDER BY ", "");
+
+    for(ModifierSet sortIndex : sortIndexes) {
+      String property = sortIndex.getBase();
+
+      if(!indexedProperties.contains(property)) {
+        return null;
+      }
+
+      boolean descending = sortIndex.getModifiers().stream()
+        .anyMatch(modifier -> modifier.getType().endsWith("descending"));
+
+      String sortBy = columns.containsKey(property)
+        ? String.format("%s.%s", table, columns.get(property))
+        : expression(property);
+
+      orderBy.add(sortBy + (descending ? " DESC" : ""));
+    }
+
+    return orderBy.toString();
+  }
+}
@@ -0,0 +1,40 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+
+/**
+ * Creates a record from JSON that has already been encoded
+ *
+ * Saving an entity encoded it for the statement, and the response encoded
+ * it again. Instead the caller encodes it once, and the same JSON is both
+ * stored and returned in the response (see {@link StoredJson#created}).
+ */
+public class Insert {
+
+  private Insert() { }
+
+  public static void insert(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String table,
+    String id,
+    String json,
+    Handler<AsyncResult<Void>> handler) {
+
+    String sql = String.format(
+      "INSERT INTO %s_%s.%s (_id, jsonb) VALUES (%s::uuid, %s::jsonb)",
+      tenantId, "mod_circulation_storage", table,
+      Sql.literal(id), Sql.literal(json));
+
+    postgresClient.mutate(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      handler.handle(Future.succeededFuture());
+    });
+  }
+}
@@ -0,0 +1,84 @@
+package org.folio.rest.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Opaque cursor for keyset pagination of collections
+ *
+ * A cursor holds the sort keys of the last record on a page, so that the next
+ * page can be found by seeking past them in an index, instead of the database
+ * reading and discarding every record before an offset.
+ * The first page is requested using {@value #FIRST_PAGE}
+ */
+public class KeysetCursor {
+
+  public static final String FIRST_PAGE = "*";
+
+  private static final String SEPARATOR = "|";
+
+  private final List<String> keys;
+
+  private KeysetCursor(List<String> keys) {
+    this.keys = keys;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the cursor was not produced by
+   * {@link #next(String...)} or has a different number of keys
+   */
+  public static KeysetCursor parse(String cursor, int numberOfKeys) {
+    if(FIRST_PAGE.equals(cursor)) {
+      return new KeysetCursor(Collections.emptyList());
+    }
+
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor),
+        StandardCharsets.UTF_8);
+
+      List<String> keys = Arrays.asList(
+        decoded.split(Pattern.quote(SEPARATOR), -1));
+
+      if(keys.size() != numberOfKeys) {
+        throw new IllegalArgumentException();
+      }
+
+      return new KeysetCursor(keys);
+    }
+    catch(IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+        String.format("Invalid cursor: %s", cursor));
+    }
+  }
+
+  public static String next(String... keys) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(
+      String.join(SEPARATOR, keys).getBytes(StandardCharsets.UTF_8));
+  }
+
+  public boolean isFirstPage() {
+    return keys.isEmpty();
+  }
+
+  public String key(int index) {
+    return keys.get(index);
+  }
+
+  /**
+   * @return a WHERE clause combining all of the non-empty conditions
+   */
+  public static String where(String... conditions) {
+    StringJoiner where = new StringJoiner(" AND ", "WHERE ", "");
+
+    where.setEmptyValue("");
+
+    for(String condition : conditions) {
+      if(condition != null && !condition.isEmpty()) {
+        where.add(String.format("(%s)", condition));
+      }
+    }
+
+    return where.toString();
+  }
+}
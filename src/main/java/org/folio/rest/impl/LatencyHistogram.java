@@ -0,0 +1,69 @@
+package org.folio.rest.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies, recorded without locking
+ *
+ * Buckets grow exponentially (1, 2 and 5 of each power of ten milliseconds),
+ * so that, as with an HDR histogram, the relative precision is about the same
+ * for fast and slow requests. Each bucket is a separate counter, so recording
+ * from many threads does not contend on a single value.
+ */
+public class LatencyHistogram {
+
+  //Upper bounds of the buckets, the last bucket has no upper bound
+  static final long[] BUCKET_BOUNDS_MILLISECONDS = {
+    1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+  private final LongAdder[] buckets =
+    new LongAdder[BUCKET_BOUNDS_MILLISECONDS.length + 1];
+
+  private final LongAdder sumNanoseconds = new LongAdder();
+
+  public LatencyHistogram() {
+    for(int index = 0; index < buckets.length; index++) {
+      buckets[index] = new LongAdder();
+    }
+  }
+
+  /**
+   * Counts the latency in the first bucket whose upper bound it does not
+   * exceed, as Prometheus bucket bounds are inclusive
+   */
+  public void record(long nanoseconds) {
+    int bucket = 0;
+
+    while(bucket < BUCKET_BOUNDS_MILLISECONDS.length
+      && nanoseconds > TimeUnit.MILLISECONDS.toNanos(
+        BUCKET_BOUNDS_MILLISECONDS[bucket])) {
+      bucket++;
+    }
+
+    buckets[bucket].increment();
+    sumNanoseconds.add(nanoseconds);
+  }
+
+  /**
+   * @return the number recorded at or below the upper bound of each bucket
+   * (including those in earlier buckets), with the count of all recorded
+   * last, as used for Prometheus histograms
+   */
+  public long[] cumulativeCounts() {
+    long[] counts = new long[buckets.length];
+
+    long total = 0;
+
+    for(int index = 0; index < buckets.length; index++) {
+      total += buckets[index].sum();
+      counts[index] = total;
+    }
+
+    return counts;
+  }
+
+  public double sumSeconds() {
+    return sumNanoseconds.sum() / 1e9;
+  }
+}
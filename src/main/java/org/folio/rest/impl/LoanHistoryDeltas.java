@@ -0,0 +1,172 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/**
+ * Rebuilds the full documents for compacted loan history
+ *
+ * In the 'compact' loan history mode (see template_audit.sql) most versions
+ * of a loan only store the properties that changed since the previous
+ * version. Each is rebuilt by applying the changes made since the most recent
+ * full snapshot of the loan, in the order they were written.
+ */
+public class LoanHistoryDeltas {
+
+  /**
+   * Columns to select from the history table for {@link #rebuild}
+   */
+  public static final String COLUMNS = "_id, created_date::text, jsonb::text," +
+    " snapshot, array_to_json(removed_keys)::text, orig_id";
+
+  private static final int ID = 0;
+  private static final int JSONB = 2;
+  private static final int SNAPSHOT = 3;
+  private static final int REMOVED_KEYS = 4;
+  private static final int ORIGINAL_ID = 5;
+
+  private static final String HISTORY_TABLE = "loan_history_table";
+
+  private LoanHistoryDeltas() { }
+
+  /**
+   * @param rows of history, selected using {@link #COLUMNS}
+   * @param handler is given the full document for each of the rows, in the
+   * same order. Rows that are already full snapshots need no further queries,
+   * the changes for all of the loans are rebuilt using a single query
+   */
+  public static void rebuild(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    List<JsonArray> rows,
+    Handler<AsyncResult<List<JsonObject>>> handler) {
+
+    StringJoiner loanIds = new StringJoiner(", ");
+    StringJoiner changeIds = new StringJoiner(", ");
+    Set<String> loans = new HashSet<>();
+
+    for(JsonArray row : rows) {
+      if(!isSnapshot(row)) {
+        if(loans.add(row.getString(ORIGINAL_ID))) {
+          loanIds.add(Sql.literal(row.getString(ORIGINAL_ID)));
+        }
+
+        changeIds.add(Sql.literal(row.getString(ID)));
+      }
+    }
+
+    if(loans.isEmpty()) {
+      handler.handle(Future.succeededFuture(documents(rows, new HashMap<>())));
+      return;
+    }
+
+    String table = String.format("%s_%s.%s",
+      tenantId, "mod_circulation_storage", HISTORY_TABLE);
+
+    //For all of the loans at once, every version of each loan from the
+    //latest snapshot before its oldest change up to its newest change,
+    //oldest first
+    String sql = String.format(
+      "WITH changes AS (SELECT orig_id, min(created_date) AS first_change," +
+        " max(created_date) AS last_change FROM %1$s" +
+        " WHERE orig_id = ANY(ARRAY[%2$s]::uuid[])" +
+        " AND _id = ANY(ARRAY[%3$s]::uuid[]) GROUP BY orig_id)," +
+        " ranges AS (SELECT orig_id AS loan_id, coalesce(" +
+        "(SELECT max(created_date) FROM %1$s AS snapshots" +
+        " WHERE snapshots.orig_id = changes.orig_id AND snapshots.snapshot" +
+        " AND snapshots.created_date <= changes.first_change), '-infinity')" +
+        " AS range_start, last_change AS range_end FROM changes)" +
+        " SELECT %4$s FROM %1$s, ranges WHERE orig_id = loan_id" +
+        " AND created_date >= range_start AND created_date <= range_end" +
+        " ORDER BY orig_id, created_date, _id",
+      table, loanIds, changeIds, COLUMNS);
+
+    postgresClient.select(sql, reply -> {
+      try {
+        if(reply.failed()) {
+          handler.handle(Future.failedFuture(reply.cause()));
+          return;
+        }
+
+        Map<String, JsonObject> rebuilt = new HashMap<>();
+
+        String loanId = null;
+        JsonObject current = null;
+
+        for(JsonArray version : reply.result().getResults()) {
+          if(!version.getString(ORIGINAL_ID).equals(loanId)) {
+            loanId = version.getString(ORIGINAL_ID);
+            current = null;
+          }
+
+          current = apply(current, version);
+          rebuilt.put(version.getString(ID), current);
+        }
+
+        handler.handle(Future.succeededFuture(documents(rows, rebuilt)));
+      }
+      catch(Exception e) {
+        handler.handle(Future.failedFuture(e));
+      }
+    });
+  }
+
+  private static List<JsonObject> documents(
+    List<JsonArray> rows,
+    Map<String, JsonObject> rebuilt) {
+
+    List<JsonObject> documents = new ArrayList<>();
+
+    for(JsonArray row : rows) {
+      JsonObject document = rebuilt.get(row.getString(ID));
+
+      documents.add(document != null
+        ? document
+        : new JsonObject(row.getString(JSONB)));
+    }
+
+    return documents;
+  }
+
+  /**
+   * @param previous full document of the previous version, or null when
+   * there is none (e.g. the snapshot is past retention)
+   * @return the full document of the version
+   */
+  static JsonObject apply(JsonObject previous, JsonArray version) {
+    JsonObject stored = new JsonObject(version.getString(JSONB));
+
+    if(isSnapshot(version) || previous == null) {
+      return stored;
+    }
+
+    JsonObject current = previous.copy();
+
+    for(String key : stored.fieldNames()) {
+      current.put(key, stored.getValue(key));
+    }
+
+    String removedKeys = version.getString(REMOVED_KEYS);
+
+    if(removedKeys != null) {
+      new JsonArray(removedKeys).forEach(key -> current.remove((String) key));
+    }
+
+    return current;
+  }
+
+  private static boolean isSnapshot(JsonArray row) {
+    return !Boolean.FALSE.equals(row.getBoolean(SNAPSHOT));
+  }
+}
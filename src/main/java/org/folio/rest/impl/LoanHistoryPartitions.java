@@ -0,0 +1,80 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.folio.rest.persist.PostgresClient;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Maintains the monthly partitions of the loan history table
+ *
+ * Creates the partitions for this and next month ahead of time (so that
+ * writing history does not normally need to create one), and removes those
+ * past the tenant's retention period (see template_audit.sql).
+ */
+public class LoanHistoryPartitions {
+
+  private static final Logger log = LoggerFactory.getLogger(LoanHistoryPartitions.class);
+
+  private static final long MAINTENANCE_INTERVAL_MILLISECONDS = 60 * 60 * 1000;
+
+  private static final Set<String> scheduledTenants = ConcurrentHashMap.newKeySet();
+
+  private LoanHistoryPartitions() { }
+
+  /**
+   * Starts maintaining the partitions for the tenant periodically, if it has
+   * not already been started
+   */
+  public static void scheduleMaintenance(Vertx vertx, String tenantId) {
+    if(!scheduledTenants.add(tenantId)) {
+      return;
+    }
+
+    vertx.setPeriodic(MAINTENANCE_INTERVAL_MILLISECONDS, timerId ->
+      maintain(PostgresClient.getInstance(vertx, tenantId), tenantId,
+        maintained -> {
+          if(maintained.failed()) {
+            log.error(String.format(
+              "Unable to maintain loan history partitions for %s: %s",
+              tenantId, maintained.cause().getMessage()), maintained.cause());
+          }
+          else if(!maintained.result().isEmpty()) {
+            log.info(String.format(
+              "Removed loan history partitions past retention for %s: %s",
+              tenantId, maintained.result()));
+          }
+        }));
+  }
+
+  /**
+   * @param handler is given the names of the partitions removed
+   */
+  public static void maintain(
+    PostgresClient postgresClient,
+    String tenantId,
+    Handler<AsyncResult<List<String>>> handler) {
+
+    String sql = String.format("SELECT %s_%s.maintain_loan_history_partitions()",
+      tenantId, "mod_circulation_storage");
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      handler.handle(Future.succeededFuture(reply.result().getResults().stream()
+        .map(row -> row.getString(0))
+        .collect(Collectors.toList())));
+    });
+  }
+}
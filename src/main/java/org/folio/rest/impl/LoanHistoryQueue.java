@@ -0,0 +1,236 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.folio.rest.persist.PostgresClient;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Moves queued loan history into the loan history table
+ *
+ * When a tenant uses the 'queued' loan history mode (see template_audit.sql)
+ * the trigger on the loan table only adds a row to a queue. The queue is
+ * flushed periodically, and before history is read so that it is complete.
+ *
+ * The mode is found from the procedure the loan history trigger executes.
+ * Flushing is only scheduled for a tenant once it is found to be queued, and
+ * is cancelled when the queue is empty and the mode has changed back.
+ *
+ * Each batch is deleted from the queue and inserted into the history table
+ * by a single statement, so a row cannot be lost or copied twice.
+ */
+public class LoanHistoryQueue {
+
+  private static final Logger log = LoggerFactory.getLogger(LoanHistoryQueue.class);
+
+  private static final String LOAN_TABLE = "loan";
+  private static final String QUEUE_TABLE = "loan_history_queue";
+  private static final String HISTORY_TABLE = "loan_history_table";
+
+  //Largest number of rows moved by a single statement
+  static final int BATCH_SIZE = 1000;
+
+  private static final long FLUSH_INTERVAL_MILLISECONDS = 1000;
+
+  //How often a tenant that is not flushed is checked for the queued mode
+  private static final long MODE_CHECK_INTERVAL_MILLISECONDS = 10000;
+
+  //Periodic flush timer for each tenant that is flushed
+  private static final Map<String, Long> flushTimers = new ConcurrentHashMap<>();
+
+  private static final Map<String, Long> modeLastChecked = new ConcurrentHashMap<>();
+
+  private LoanHistoryQueue() { }
+
+  /**
+   * Starts flushing the queue for the tenant periodically, if it has
+   * not already been started and the tenant's history is queued
+   *
+   * The mode is checked at most once every few seconds for each tenant
+   */
+  public static void scheduleFlushing(Vertx vertx, String tenantId) {
+    if(flushTimers.containsKey(tenantId)) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+
+    long checked = modeLastChecked.compute(tenantId, (tenant, lastChecked) ->
+      lastChecked == null || now - lastChecked >= MODE_CHECK_INTERVAL_MILLISECONDS
+        ? now : lastChecked);
+
+    if(checked != now) {
+      return;
+    }
+
+    isQueued(PostgresClient.getInstance(vertx, tenantId), tenantId, queued -> {
+      if(queued.failed()) {
+        log.error(String.format("Unable to find loan history mode for %s: %s",
+          tenantId, queued.cause().getMessage()), queued.cause());
+      }
+      else if(queued.result()) {
+        startFlushing(vertx, tenantId);
+      }
+    });
+  }
+
+  /**
+   * Moves all queued history into the history table before it is read,
+   * when the tenant's history is queued (or the queue is still being
+   * flushed after the mode has changed), waiting for any other flushes
+   *
+   * @param handler is given the number of rows moved
+   */
+  public static void flushIfQueued(
+    Vertx vertx,
+    PostgresClient postgresClient,
+    String tenantId,
+    Handler<AsyncResult<Integer>> handler) {
+
+    if(flushTimers.containsKey(tenantId)) {
+      flush(postgresClient, tenantId, true, handler);
+      return;
+    }
+
+    isQueued(postgresClient, tenantId, queued -> {
+      if(queued.failed()) {
+        handler.handle(Future.failedFuture(queued.cause()));
+        return;
+      }
+
+      if(!queued.result()) {
+        handler.handle(Future.succeededFuture(0));
+        return;
+      }
+
+      startFlushing(vertx, tenantId);
+      flush(postgresClient, tenantId, true, handler);
+    });
+  }
+
+  private static void startFlushing(Vertx vertx, String tenantId) {
+    flushTimers.computeIfAbsent(tenantId, tenant ->
+      vertx.setPeriodic(FLUSH_INTERVAL_MILLISECONDS, timerId ->
+        flushPeriodically(vertx, tenantId, timerId)));
+  }
+
+  private static void flushPeriodically(
+    Vertx vertx,
+    String tenantId,
+    long timerId) {
+
+    PostgresClient postgresClient = PostgresClient.getInstance(vertx, tenantId);
+
+    flush(postgresClient, tenantId, false, flushed -> {
+      if(flushed.failed()) {
+        log.error(String.format("Unable to flush loan history for %s: %s",
+          tenantId, flushed.cause().getMessage()), flushed.cause());
+
+        return;
+      }
+
+      //The mode is only checked once the queue is empty, so that history
+      //queued before it changed is still moved
+      if(flushed.result() > 0) {
+        return;
+      }
+
+      isQueued(postgresClient, tenantId, queued -> {
+        if(queued.succeeded() && !queued.result()) {
+          vertx.cancelTimer(timerId);
+          flushTimers.remove(tenantId, timerId);
+        }
+      });
+    });
+  }
+
+  /**
+   * Whether the loan history trigger for the tenant queues history
+   */
+  private static void isQueued(
+    PostgresClient postgresClient,
+    String tenantId,
+    Handler<AsyncResult<Boolean>> handler) {
+
+    String sql = String.format(
+      "SELECT EXISTS (SELECT 1 FROM pg_trigger t JOIN pg_proc p ON p.oid = t.tgfoid" +
+        " WHERE t.tgrelid = '%s_%s.%s'::regclass" +
+        " AND t.tgname = 'loan_history_trigger'" +
+        " AND p.proname = 'loan_history_queue_func')",
+      tenantId, "mod_circulation_storage", LOAN_TABLE);
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      handler.handle(Future.succeededFuture(
+        reply.result().getResults().get(0).getBoolean(0)));
+    });
+  }
+
+  /**
+   * Moves all queued history into the history table
+   *
+   * @param waitForOtherFlushes when true, rows being moved by another flush
+   * are waited for (so that they are in the history table once this has
+   * finished), otherwise they are skipped
+   * @param handler is given the number of rows moved
+   */
+  public static void flush(
+    PostgresClient postgresClient,
+    String tenantId,
+    boolean waitForOtherFlushes,
+    Handler<AsyncResult<Integer>> handler) {
+
+    flush(postgresClient, tenantId, waitForOtherFlushes, 0, handler);
+  }
+
+  private static void flush(
+    PostgresClient postgresClient,
+    String tenantId,
+    boolean waitForOtherFlushes,
+    int movedSoFar,
+    Handler<AsyncResult<Integer>> handler) {
+
+    String schema = String.format("%s_%s", tenantId, "mod_circulation_storage");
+
+    //Rows are counted as they leave the queue, as the insert into the
+    //history table is redirected to a partition, so returns no rows
+    String sql = String.format(
+      "WITH moved AS (DELETE FROM %1$s.%2$s WHERE seq IN" +
+        " (SELECT seq FROM %1$s.%2$s ORDER BY seq LIMIT %3$s FOR UPDATE%4$s)" +
+        " RETURNING orig_id, operation, jsonb, created_date)," +
+        " inserted AS (INSERT INTO %1$s.%5$s" +
+        " (_id, orig_id, operation, jsonb, created_date)" +
+        " SELECT public.gen_random_uuid(), orig_id, operation, jsonb, created_date" +
+        " FROM moved)" +
+        " SELECT count(*) FROM moved",
+      schema, QUEUE_TABLE, BATCH_SIZE,
+      waitForOtherFlushes ? "" : " SKIP LOCKED", HISTORY_TABLE);
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      int moved = reply.result().getResults().get(0).getLong(0).intValue();
+
+      if(moved < BATCH_SIZE) {
+        handler.handle(Future.succeededFuture(movedSoFar + moved));
+      }
+      else {
+        flush(postgresClient, tenantId, waitForOtherFlushes,
+          movedSoFar + moved, handler);
+      }
+    });
+  }
+}
@@ -4,19 +4,12 @@ import io.vertx.core.AsyncResult;
 import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
 import org.folio.rest.annotations.Validate;
-import org.folio.rest.jaxrs.model.LoanPolicies;
 import org.folio.rest.jaxrs.model.LoanPolicy;
 import org.folio.rest.jaxrs.resource.LoanPolicyStorageResource;
-import org.folio.rest.persist.Criteria.Criteria;
-import org.folio.rest.persist.Criteria.Criterion;
-import org.folio.rest.persist.Criteria.Limit;
-import org.folio.rest.persist.Criteria.Offset;
 import org.folio.rest.persist.PostgresClient;
-import org.folio.rest.persist.cql.CQLWrapper;
-import org.folio.rest.tools.utils.OutStream;
 import org.folio.rest.tools.utils.TenantTool;
-import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
 
 import javax.ws.rs.core.Response;
 import java.util.List;
@@ -30,23 +23,46 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
   private final String LOAN_POLICY_TABLE = "loan_policy";
   private final Class<LoanPolicy> LOAN_POLICY_CLASS = LoanPolicy.class;
 
+  //Bounds how long other instances of the module can serve outdated policies
+  private static final long CACHE_TIME_TO_LIVE_MILLISECONDS = 10000;
+  private static final int CACHE_MAXIMUM_SIZE = 1000;
+
+  //Loan policies fetched by ID, keyed by tenant and ID
+  static final ExpiringCache<String, LoanPolicy> loanPolicyCache =
+    new ExpiringCache<>(CACHE_MAXIMUM_SIZE, CACHE_TIME_TO_LIVE_MILLISECONDS,
+      System::currentTimeMillis);
+
+  static {
+    Metrics.registerCache("loan_policies", loanPolicyCache::getHits,
+      loanPolicyCache::getMisses);
+  }
+
   @Override
   @Validate
   public void deleteLoanPolicyStorageLoanPolicies(
     String lang, Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "deleteLoanPolicyStorageLoanPolicies", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     vertxContext.runOnContext(v -> {
       try {
-        PostgresClient postgresClient = PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+        TimedPostgresClient postgresClient = timing.client(
+          PostgresClient.getInstance(vertxContext.owner(),
+            TenantTool.calculateTenantId(tenantId)));
 
         postgresClient.mutate(String.format("TRUNCATE TABLE %s_%s.%s",
           tenantId, "mod_circulation_storage", LOAN_POLICY_TABLE),
           reply -> {
+            loanPolicyCache.invalidateIf(key -> key.startsWith(
+              cacheKey(tenantId, "")));
+
             asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
               LoanPolicyStorageResource.DeleteLoanPolicyStorageLoanPoliciesResponse
                 .noContent().build()));
@@ -64,39 +80,53 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
   public void getLoanPolicyStorageLoanPolicies(
     int offset,
     int limit,
+    String totalRecords,
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getLoanPolicyStorageLoanPolicies", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
       String tenantId = okapiHeaders.get(TENANT_HEADER);
 
       try {
         vertxContext.runOnContext(v -> {
           try {
-            PostgresClient postgresClient = PostgresClient.getInstance(
-              vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
-
-            String[] fieldList = {"*"};
-
-            CQL2PgJSON cql2pgJson = new CQL2PgJSON("loan_policy.jsonb");
-            CQLWrapper cql = new CQLWrapper(cql2pgJson, null)
-              .setLimit(new Limit(limit))
-              .setOffset(new Offset(offset));
+            TimedPostgresClient postgresClient = timing.client(
+              PostgresClient.getInstance(vertxContext.owner(),
+                TenantTool.calculateTenantId(tenantId)));
 
-            postgresClient.get(LOAN_POLICY_TABLE, LOAN_POLICY_CLASS, fieldList, cql,
-              true, false, reply -> {
+            StoredJson.page(postgresClient, tenantId, LOAN_POLICY_TABLE, "",
+              offset, limit, TotalRecords.isExact(totalRecords), reply -> {
                 try {
                   if(reply.succeeded()) {
-                    List<LoanPolicy> loanPolicies = (List<LoanPolicy>) reply.result()[0];
+                    List<String> loanPolicies = reply.result().getRecords();
+
+                    if(TotalRecords.isEstimated(totalRecords)) {
+                      TotalRecords.estimate(postgresClient, tenantId,
+                        LOAN_POLICY_TABLE, "", estimate -> {
+                          if(estimate.succeeded()) {
+                            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                              StoredJson.ok(StoredJson.collection("loanPolicies",
+                                loanPolicies, estimate.result(), null))));
+                          }
+                          else {
+                            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                              LoanPolicyStorageResource.GetLoanPolicyStorageLoanPoliciesResponse.
+                                withPlainInternalServerError(estimate.cause().getMessage())));
+                          }
+                        });
 
-                    LoanPolicies pagedLoans = new LoanPolicies();
-                    pagedLoans.setLoanPolicies(loanPolicies);
-                    pagedLoans.setTotalRecords((Integer)reply.result()[1]);
+                      return;
+                    }
 
                     asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                      LoanPolicyStorageResource.GetLoanPolicyStorageLoanPoliciesResponse.
-                        withJsonOK(pagedLoans)));
+                      StoredJson.ok(StoredJson.collection("loanPolicies",
+                        loanPolicies, reply.result().getTotalRecords(), null))));
                   }
                   else {
                     asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
@@ -130,15 +160,20 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
   public void postLoanPolicyStorageLoanPolicies(
     String lang, LoanPolicy entity,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "postLoanPolicyStorageLoanPolicies", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
       vertxContext.runOnContext(v -> {
         try {
@@ -146,17 +181,17 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
             entity.setId(UUID.randomUUID().toString());
           }
 
-          postgresClient.save("loan_policy", entity.getId(), entity,
-            reply -> {
+          String json = PostgresClient.pojo2json(entity);
+
+          Insert.insert(postgresClient, tenantId, LOAN_POLICY_TABLE,
+            entity.getId(), json, reply -> {
+              loanPolicyCache.invalidate(cacheKey(tenantId, entity.getId()));
+
               try {
                 if(reply.succeeded()) {
-                  OutStream stream = new OutStream();
-                  stream.setData(entity);
-
                   asyncResultHandler.handle(
                     io.vertx.core.Future.succeededFuture(
-                      LoanPolicyStorageResource.PostLoanPolicyStorageLoanPoliciesResponse
-                        .withJsonCreated(reply.result(), stream)));
+                      StoredJson.created(entity.getId(), json)));
                 }
                 else {
                   asyncResultHandler.handle(
@@ -193,27 +228,44 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
     String loanPolicyId,
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getLoanPolicyStorageLoanPoliciesByLoanPolicyId",
+      okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient = PostgresClient.getInstance(
-        vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
-
-      Criteria a = new Criteria();
-
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(loanPolicyId);
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
-      Criterion criterion = new Criterion(a);
+      String filter = PrimaryKey.filter(LOAN_POLICY_TABLE, loanPolicyId);
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.get(LOAN_POLICY_TABLE, LOAN_POLICY_CLASS, criterion, true, false,
-            reply -> {
+          LoanPolicy cachedLoanPolicy = loanPolicyCache.get(
+            cacheKey(tenantId, loanPolicyId));
+
+          if(cachedLoanPolicy != null) {
+            asyncResultHandler.handle(
+              io.vertx.core.Future.succeededFuture(
+                LoanPolicyStorageResource.
+                  GetLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse.
+                  withJsonOK(cachedLoanPolicy)));
+
+            return;
+          }
+
+          long cacheGeneration = loanPolicyCache.generation();
+
+          postgresClient.untimed().get(LOAN_POLICY_TABLE, LOAN_POLICY_CLASS,
+            new String[] {"*"}, filter, false, false,
+            postgresClient.timed("get " + LOAN_POLICY_TABLE + " " + filter, reply -> {
               try {
                 if (reply.succeeded()) {
                   List<LoanPolicy> loanPolicies = (List<LoanPolicy>) reply.result()[0];
@@ -221,6 +273,9 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
                   if (loanPolicies.size() == 1) {
                     LoanPolicy loanPolicy = loanPolicies.get(0);
 
+                    loanPolicyCache.put(cacheKey(tenantId, loanPolicyId),
+                      loanPolicy, cacheGeneration);
+
                     asyncResultHandler.handle(
                       io.vertx.core.Future.succeededFuture(
                         LoanPolicyStorageResource.
@@ -249,7 +304,7 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
                     GetLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse.
                     withPlainInternalServerError(e.getMessage())));
               }
-            });
+            }));
         } catch (Exception e) {
           e.printStackTrace();
           asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
@@ -272,28 +327,30 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
   public void deleteLoanPolicyStorageLoanPoliciesByLoanPolicyId(
     String loanPolicyId,
     String lang, Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "deleteLoanPolicyStorageLoanPoliciesByLoanPolicyId",
+      okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
-
-      Criteria a = new Criteria();
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(loanPolicyId);
-
-      Criterion criterion = new Criterion(a);
+      String delete = PrimaryKey.delete(tenantId, LOAN_POLICY_TABLE, loanPolicyId);
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.delete(LOAN_POLICY_TABLE, criterion,
+          postgresClient.mutate(delete,
             reply -> {
+              loanPolicyCache.invalidate(cacheKey(tenantId, loanPolicyId));
+
               if(reply.succeeded()) {
                 asyncResultHandler.handle(
                   Future.succeededFuture(
@@ -326,104 +383,61 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
     String lang,
     LoanPolicy entity,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "putLoanPolicyStorageLoanPoliciesByLoanPolicyId",
+      okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
-      Criteria a = new Criteria();
+      if(entity.getId() == null) {
+        entity.setId(loanPolicyId);
+      }
 
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(loanPolicyId);
+      //IDs are UUIDs, so are the same regardless of case
+      if(!loanPolicyId.equalsIgnoreCase(entity.getId())) {
+        asyncResultHandler.handle(
+          io.vertx.core.Future.succeededFuture(
+            PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
+              .withPlainBadRequest("id in body does not match path")));
 
-      Criterion criterion = new Criterion(a);
+        return;
+      }
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.get(LOAN_POLICY_TABLE, LOAN_POLICY_CLASS, criterion, true, false,
-            reply -> {
-              if(reply.succeeded()) {
-                List<LoanPolicy> loanPolicyList = (List<LoanPolicy>) reply.result()[0];
-
-                if (loanPolicyList.size() == 1) {
-                  try {
-                    postgresClient.update(LOAN_POLICY_TABLE, entity, criterion,
-                      true,
-                      update -> {
-                        try {
-                          if(update.succeeded()) {
-                            OutStream stream = new OutStream();
-                            stream.setData(entity);
-
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                                  .withNoContent()));
-                          }
-                          else {
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                                  .withPlainInternalServerError(
-                                    update.cause().getMessage())));
-                          }
-                        } catch (Exception e) {
-                          asyncResultHandler.handle(
-                            Future.succeededFuture(
-                              PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                                .withPlainInternalServerError(e.getMessage())));
-                        }
-                      });
-                  } catch (Exception e) {
-                    asyncResultHandler.handle(Future.succeededFuture(
+          Upsert.upsert(postgresClient, tenantId, LOAN_POLICY_TABLE,
+            loanPolicyId, entity, reply -> {
+              loanPolicyCache.invalidate(cacheKey(tenantId, loanPolicyId));
+
+              try {
+                if(reply.succeeded()) {
+                  asyncResultHandler.handle(
+                    Future.succeededFuture(
                       PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                        .withPlainInternalServerError(e.getMessage())));
-                  }
+                        .withNoContent()));
                 }
                 else {
-                  try {
-                    postgresClient.save(LOAN_POLICY_TABLE, entity.getId(), entity,
-                      save -> {
-                        try {
-                          if(save.succeeded()) {
-                            OutStream stream = new OutStream();
-                            stream.setData(entity);
-
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                                  .withNoContent()));
-                          }
-                          else {
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                                  .withPlainInternalServerError(
-                                    save.cause().getMessage())));
-                          }
-                        } catch (Exception e) {
-                          asyncResultHandler.handle(
-                            Future.succeededFuture(
-                              PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                                .withPlainInternalServerError(e.getMessage())));
-                        }
-                      });
-                  } catch (Exception e) {
-                    asyncResultHandler.handle(Future.succeededFuture(
+                  asyncResultHandler.handle(
+                    Future.succeededFuture(
                       PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                        .withPlainInternalServerError(e.getMessage())));
-                  }
+                        .withPlainInternalServerError(
+                          reply.cause().getMessage())));
                 }
-              } else {
-                asyncResultHandler.handle(Future.succeededFuture(
-                  PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
-                    .withPlainInternalServerError(reply.cause().getMessage())));
+              } catch (Exception e) {
+                asyncResultHandler.handle(
+                  Future.succeededFuture(
+                    PutLoanPolicyStorageLoanPoliciesByLoanPolicyIdResponse
+                      .withPlainInternalServerError(e.getMessage())));
               }
             });
         } catch (Exception e) {
@@ -438,4 +452,34 @@ public class LoanPoliciesAPI implements LoanPolicyStorageResource {
           .withPlainInternalServerError(e.getMessage())));
     }
   }
+
+  @Override
+  public void getLoanPolicyStorageCacheStatistics(
+    Map<String, String> okapiHeaders,
+    Handler<AsyncResult<Response>> responseHandler,
+    Context vertxContext) throws Exception {
+    Handler<AsyncResult<Response>> asyncResultHandler = Metrics.recorded(
+      "getLoanPolicyStorageCacheStatistics", okapiHeaders.get(TENANT_HEADER),
+      responseHandler);
+
+    //Built directly, as the counters can exceed the range of the generated
+    //integer properties
+    JsonObject statistics = new JsonObject()
+      .put("hits", loanPolicyCache.getHits())
+      .put("misses", loanPolicyCache.getMisses())
+      .put("evictions", loanPolicyCache.getEvictions())
+      .put("size", loanPolicyCache.size());
+
+    asyncResultHandler.handle(Future.succeededFuture(
+      Response.status(200)
+        .header("Content-Type", "application/json")
+        .entity(statistics.encode())
+        .build()));
+  }
+
+  private static String cacheKey(String tenantId, String loanPolicyId) {
+    //The same policy can be fetched using an upper case ID, but is updated
+    //and deleted using the stored (lower case) ID
+    return String.format("%s/%s", tenantId, loanPolicyId.toLowerCase());
+  }
 }
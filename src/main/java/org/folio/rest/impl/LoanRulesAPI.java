@@ -4,6 +4,8 @@ import io.vertx.core.AsyncResult;
 import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
@@ -22,6 +24,8 @@ public class LoanRulesAPI implements LoanRulesStorageResource {
   private static final Logger log = LoggerFactory.getLogger(LoanRulesStorageResource.class);
   private static final String LOAN_RULES_TABLE = "loan_rules";
 
+  private static final LoanRulesCache cache = new LoanRulesCache();
+
   private void internalErrorGet(Handler<AsyncResult<Response>> asyncResultHandler, Throwable e) {
     log.error(e);
     asyncResultHandler.handle(Future.succeededFuture(
@@ -29,38 +33,80 @@ public class LoanRulesAPI implements LoanRulesStorageResource {
         withPlainInternalServerError(e.getMessage())));
   }
 
+  private void respondWithLoanRules(
+      LoanRulesCache.CachedLoanRules loanRules, String ifNoneMatch,
+      Handler<AsyncResult<Response>> asyncResultHandler) {
+
+    if (LoanRulesCache.matches(ifNoneMatch, loanRules.getETag())) {
+      asyncResultHandler.handle(Future.succeededFuture(
+          LoanRulesStorageResource.GetLoanRulesStorageResponse.withNotModified(
+              loanRules.getETag())));
+      return;
+    }
+
+    asyncResultHandler.handle(Future.succeededFuture(
+        LoanRulesStorageResource.GetLoanRulesStorageResponse.withJsonOK(
+            loanRules.getETag(), loanRules.getLoanRules())));
+  }
+
   @Override
-  public void getLoanRulesStorage(Map<String, String> okapiHeaders,
-      Handler<AsyncResult<Response>> asyncResultHandler, Context vertxContext) throws Exception {
+  public void getLoanRulesStorage(String ifNoneMatch, Map<String, String> okapiHeaders,
+      Handler<AsyncResult<Response>> responseHandler, Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getLoanRulesStorage", TenantTool.tenantId(okapiHeaders));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
+
     try {
       vertxContext.runOnContext(v -> {
         try {
-          PostgresClient postgresClient = PostgresClient.getInstance(
-              vertxContext.owner(), TenantTool.tenantId(okapiHeaders));
-          postgresClient.get(LOAN_RULES_TABLE, LoanRules.class, "", true, false,
-            reply -> {
-              try {
-                if (reply.failed()) {
-                  internalErrorGet(asyncResultHandler, reply.cause());
-                  return;
-                }
+          String tenantId = TenantTool.tenantId(okapiHeaders);
 
-                @SuppressWarnings("unchecked")
-                List<LoanRules> loanRulesList = (List<LoanRules>) reply.result()[0];
+          LoanRulesCache.CachedLoanRules cachedLoanRules = cache.get(tenantId);
 
-                if (loanRulesList.size() != 1) {
-                  internalErrorGet(asyncResultHandler, new IllegalStateException("loanRulesList.size() = "
-                      + loanRulesList.size()));
-                  return;
-                }
+          //Only the version is read when the cached loan rules are current,
+          //so that a change made through any instance of the module (which
+          //changes the version) is seen without reading the rules each time
+          String sql = String.format(
+            "SELECT version, CASE WHEN version = %s THEN NULL ELSE jsonb::text END" +
+              " FROM %s_%s.%s",
+            cachedLoanRules == null ? "NULL" : cachedLoanRules.getVersion(),
+            tenantId, "mod_circulation_storage", LOAN_RULES_TABLE);
 
-                LoanRules loanRules = loanRulesList.get(0);
-                asyncResultHandler.handle(Future.succeededFuture(
-                    LoanRulesStorageResource.GetLoanRulesStorageResponse.withJsonOK(loanRules)));
-              } catch (Exception e) {
-                internalErrorGet(asyncResultHandler, e);
+          TimedPostgresClient postgresClient = timing.client(
+            PostgresClient.getInstance(vertxContext.owner(), tenantId));
+
+          postgresClient.select(sql, reply -> {
+            try {
+              if (reply.failed()) {
+                internalErrorGet(asyncResultHandler, reply.cause());
+                return;
+              }
+
+              List<JsonArray> rows = reply.result().getResults();
+
+              if (rows.size() != 1) {
+                internalErrorGet(asyncResultHandler, new IllegalStateException("loanRulesList.size() = "
+                    + rows.size()));
+                return;
               }
-            });
+
+              long version = rows.get(0).getLong(0);
+              String storedLoanRules = rows.get(0).getString(1);
+
+              if (storedLoanRules == null) {
+                respondWithLoanRules(cachedLoanRules, ifNoneMatch, asyncResultHandler);
+                return;
+              }
+
+              LoanRules loanRules = Json.decodeValue(storedLoanRules, LoanRules.class);
+              respondWithLoanRules(cache.put(tenantId, version, loanRules),
+                  ifNoneMatch, asyncResultHandler);
+            } catch (Exception e) {
+              internalErrorGet(asyncResultHandler, e);
+            }
+          });
         } catch (Exception e) {
           internalErrorGet(asyncResultHandler, e);
         }
@@ -79,16 +125,24 @@ public class LoanRulesAPI implements LoanRulesStorageResource {
 
   @Override
   public void putLoanRulesStorage(LoanRules entity, Map<String, String> okapiHeaders,
-      Handler<AsyncResult<Response>> asyncResultHandler, Context vertxContext) throws Exception {
+      Handler<AsyncResult<Response>> responseHandler, Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "putLoanRulesStorage", TenantTool.tenantId(okapiHeaders));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
+
     try {
       vertxContext.runOnContext(v -> {
         try {
-          PostgresClient postgresClient = PostgresClient.getInstance(
-              vertxContext.owner(), TenantTool.tenantId(okapiHeaders));
+          String tenantId = TenantTool.tenantId(okapiHeaders);
+          TimedPostgresClient postgresClient = timing.client(
+            PostgresClient.getInstance(vertxContext.owner(), tenantId));
           UpdateSection updateSection = new UpdateSection().addField("loanRulesAsTextFile");
           updateSection.setValue(entity.getLoanRulesAsTextFile());
 
-          postgresClient.update(LOAN_RULES_TABLE, updateSection, (Criterion)null, true, update -> {
+          postgresClient.untimed().update(LOAN_RULES_TABLE, updateSection, (Criterion)null, true,
+            postgresClient.timed("update " + LOAN_RULES_TABLE, update -> {
               try {
                 if (update.failed()) {
                   internalErrorPut(asyncResultHandler, update.cause());
@@ -99,7 +153,7 @@ public class LoanRulesAPI implements LoanRulesStorageResource {
               } catch (Exception e) {
                 internalErrorPut(asyncResultHandler, e);
               }
-            });
+            }));
         } catch (Exception e) {
           internalErrorPut(asyncResultHandler, e);
         }
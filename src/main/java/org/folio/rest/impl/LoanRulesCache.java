@@ -0,0 +1,116 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.json.Json;
+import org.folio.rest.jaxrs.model.LoanRules;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-tenant cache of the loan rules
+ *
+ * The loan rules are read for every checkout, yet rarely change. Every change
+ * to the stored loan rules gives them a new version (see
+ * set_loan_rules_version in template_create_tenant.sql), whichever instance
+ * of the module made it. Each request only reads the stored version, the
+ * loan rules are read again when it differs from the cached version
+ * (see {@link LoanRulesAPI}).
+ */
+public class LoanRulesCache {
+
+  public static class CachedLoanRules {
+    private final LoanRules loanRules;
+    private final String eTag;
+    private final long version;
+
+    private CachedLoanRules(LoanRules loanRules, String eTag, long version) {
+      this.loanRules = loanRules;
+      this.eTag = eTag;
+      this.version = version;
+    }
+
+    public LoanRules getLoanRules() {
+      return loanRules;
+    }
+
+    public String getETag() {
+      return eTag;
+    }
+
+    /**
+     * @return the stored version the loan rules were read at
+     */
+    public long getVersion() {
+      return version;
+    }
+  }
+
+  private final Map<String, CachedLoanRules> cached = new ConcurrentHashMap<>();
+
+  /**
+   * @return the cached loan rules for the tenant, whatever their version,
+   * or null if there are none
+   */
+  public CachedLoanRules get(String tenantId) {
+    return cached.get(tenantId);
+  }
+
+  /**
+   * @param version stored version of the loan rules, read in the same
+   * statement as the loan rules
+   * @return the loan rules with their ETag, they replace the cached loan
+   * rules unless those were read at a later version
+   */
+  public CachedLoanRules put(String tenantId, long version, LoanRules loanRules) {
+    CachedLoanRules entry = new CachedLoanRules(loanRules, eTag(loanRules),
+      version);
+
+    cached.merge(tenantId, entry, (current, latest) ->
+      current.version > latest.version ? current : latest);
+
+    return entry;
+  }
+
+  /**
+   * @param ifNoneMatch value of an If-None-Match header, can be null
+   * @return whether the header refers to the version of the loan rules
+   * with the ETag
+   */
+  public static boolean matches(String ifNoneMatch, String eTag) {
+    if(ifNoneMatch == null) {
+      return false;
+    }
+
+    for(String candidate : ifNoneMatch.split(",")) {
+      String trimmed = candidate.trim();
+
+      //Weak comparison is used for If-None-Match
+      if(trimmed.startsWith("W/")) {
+        trimmed = trimmed.substring(2);
+      }
+
+      if(trimmed.equals("*") || trimmed.equals(eTag)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  static String eTag(LoanRules loanRules) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+        Json.encode(loanRules).getBytes(StandardCharsets.UTF_8));
+
+      return "\"" + Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(digest) + "\"";
+    }
+    catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -1,22 +1,25 @@
 package org.folio.rest.impl;
 
 import io.vertx.core.*;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.folio.rest.annotations.Validate;
 import org.folio.rest.jaxrs.model.Loan;
+import org.folio.rest.jaxrs.model.LoanBatchResult;
+import org.folio.rest.jaxrs.model.LoanBatchResults;
 import org.folio.rest.jaxrs.model.Loans;
 import org.folio.rest.jaxrs.resource.LoanStorageResource;
-import org.folio.rest.persist.Criteria.Criteria;
-import org.folio.rest.persist.Criteria.Criterion;
 import org.folio.rest.persist.Criteria.Limit;
 import org.folio.rest.persist.Criteria.Offset;
 import org.folio.rest.persist.PostgresClient;
 import org.folio.rest.persist.cql.CQLWrapper;
-import org.folio.rest.tools.utils.OutStream;
 import org.folio.rest.tools.utils.TenantTool;
 import org.joda.time.DateTime;
+import org.z3950.zing.cql.CQLTermNode;
 import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
 
 import javax.ws.rs.core.Response;
@@ -31,25 +34,69 @@ public class LoansAPI implements LoanStorageResource {
   private final String LOAN_TABLE = "loan";
   private final String LOAN_HISTORY_TABLE = "loan_history_table";
 
-  private final Class<Loan> LOAN_CLASS = Loan.class;
+  //Name of the partial unique index on open loans for an item
+  private static final String OPEN_LOAN_INDEX = "loan_itemid_open_idx";
+
+  //Largest number of loans stored by a single batch statement
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  private static final String BATCH_CREATED = "created";
+  private static final String BATCH_UPDATED = "updated";
+  private static final String BATCH_FAILED = "failed";
+
+  //Properties with indexed columns in template_create_tenant.sql
+  private static final IndexedCqlTranslator LOAN_INDEXES =
+    new IndexedCqlTranslator("loan")
+      .withColumn("userId", "user_id", "uuid")
+      .withColumn("itemId", "item_id", "uuid")
+      .withColumn("status.name", "status_name", "text")
+      .withColumn("dueDate", "due_date", "timestamptz")
+      .withColumn("loanDate", "loan_date", "timestamptz")
+      .withContainmentProperty("id")
+      .withContainmentProperty("proxyUserId")
+      .withContainmentProperty("action");
+
+  //Properties with history indexes in template_audit.sql
+  private static final IndexedCqlTranslator LOAN_HISTORY_INDEXES =
+    new IndexedCqlTranslator("loan_history_table")
+      .withIndexedProperty("userId")
+      .withIndexedProperty("itemId");
+
+  //Translations of queries into WHERE (and ORDER BY) clauses
+  private static final CqlTranslationCache LOAN_FILTERS =
+    new CqlTranslationCache(1000, LoansAPI::loanFilter);
+
+  static {
+    Metrics.registerCache("loan_cql_translations", LOAN_FILTERS::getHits,
+      LOAN_FILTERS::getMisses);
+  }
 
   public LoansAPI(Vertx vertx, String tenantId) {
     PostgresClient.getInstance(vertx, tenantId).setIdField("_id");
+
+    LoanHistoryQueue.scheduleFlushing(vertx, tenantId);
+    LoanHistoryPartitions.scheduleMaintenance(vertx, tenantId);
   }
 
   @Override
   public void deleteLoanStorageLoans(
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "deleteLoanStorageLoans", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     vertxContext.runOnContext(v -> {
       try {
-        PostgresClient postgresClient = PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+        TimedPostgresClient postgresClient = timing.client(
+          PostgresClient.getInstance(vertxContext.owner(),
+            TenantTool.calculateTenantId(tenantId)));
 
         postgresClient.mutate(String.format("TRUNCATE TABLE %s_%s.loan",
           tenantId, "mod_circulation_storage"),
@@ -73,41 +120,74 @@ public class LoansAPI implements LoanStorageResource {
     int offset,
     int limit,
     String query,
+    String cursor,
+    String totalRecords,
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getLoanStorageLoans", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
       vertxContext.runOnContext(v -> {
         try {
-          PostgresClient postgresClient = PostgresClient.getInstance(
-            vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+          TimedPostgresClient postgresClient = timing.client(
+            PostgresClient.getInstance(vertxContext.owner(),
+              TenantTool.calculateTenantId(tenantId)));
 
-          System.out.println("CQL Query: " + query);
+          if(cursor != null) {
+            getLoansAfterCursor(postgresClient, tenantId, query, cursor, limit,
+              asyncResultHandler);
 
-          String[] fieldList = {"*"};
+            return;
+          }
+
+          String openLoanFilter = timing.translate(query,
+            LoansAPI::openLoanFilter);
 
-          CQL2PgJSON cql2pgJson = new CQL2PgJSON("loan.jsonb");
-          CQLWrapper cql = new CQLWrapper(cql2pgJson, query)
-            .setLimit(new Limit(limit))
-            .setOffset(new Offset(offset));
+          if(openLoanFilter != null) {
+            getOpenLoanForItem(postgresClient, tenantId, openLoanFilter,
+              offset, totalRecords, asyncResultHandler);
 
-          postgresClient.get(LOAN_TABLE, LOAN_CLASS, fieldList, cql,
-            true, false, reply -> {
+            return;
+          }
+
+          String filter = timing.translate(query, LOAN_FILTERS::translate);
+
+          StoredJson.page(postgresClient, tenantId, LOAN_TABLE, filter,
+            offset, limit, TotalRecords.isExact(totalRecords), reply -> {
               try {
                 if(reply.succeeded()) {
-                  List<Loan> loans = (List<Loan>) reply.result()[0];
+                  List<String> loans = reply.result().getRecords();
+
+                  if(TotalRecords.isEstimated(totalRecords)) {
+                    TotalRecords.estimate(postgresClient, tenantId, LOAN_TABLE,
+                      filter, estimate -> {
+                        if(estimate.succeeded()) {
+                          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                            StoredJson.ok(StoredJson.collection("loans", loans,
+                              estimate.result(), null))));
+                        }
+                        else {
+                          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                            LoanStorageResource.GetLoanStorageLoansResponse.
+                              withPlainInternalServerError(
+                                estimate.cause().getMessage())));
+                        }
+                      });
 
-                  Loans pagedLoans = new Loans();
-                  pagedLoans.setLoans(loans);
-                  pagedLoans.setTotalRecords((Integer)reply.result()[1]);
+                    return;
+                  }
 
                   asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                    LoanStorageResource.GetLoanStorageLoansResponse.
-                      withJsonOK(pagedLoans)));
+                    StoredJson.ok(StoredJson.collection("loans", loans,
+                      reply.result().getTotalRecords(), null))));
                 }
                 else {
                   asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
@@ -136,13 +216,120 @@ public class LoansAPI implements LoanStorageResource {
     }
   }
 
+  private void getOpenLoanForItem(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String filter,
+    int offset,
+    String totalRecords,
+    Handler<AsyncResult<Response>> asyncResultHandler) {
+
+    //There can be at most one loan, so the records are not counted
+    StoredJson.page(postgresClient, tenantId, LOAN_TABLE, filter, offset, 1,
+      false, reply -> {
+        try {
+          if(reply.succeeded()) {
+            List<String> loans = reply.result().getRecords();
+
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              StoredJson.ok(StoredJson.collection("loans", loans,
+                TotalRecords.NONE.equals(totalRecords) ? null : loans.size(),
+                null))));
+          }
+          else {
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              LoanStorageResource.GetLoanStorageLoansResponse.
+                withPlainInternalServerError(reply.cause().getMessage())));
+          }
+        } catch (Exception e) {
+          log.error(e.getMessage(), e);
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            LoanStorageResource.GetLoanStorageLoansResponse.
+              withPlainInternalServerError(e.getMessage())));
+        }
+      });
+  }
+
+  private void getLoansAfterCursor(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String query,
+    String cursor,
+    int limit,
+    Handler<AsyncResult<Response>> asyncResultHandler) throws Exception {
+
+    KeysetCursor position;
+
+    try {
+      if(IndexedCqlTranslator.hasSort(query)) {
+        throw new IllegalArgumentException(
+          "Sorting cannot be combined with a cursor");
+      }
+
+      position = KeysetCursor.parse(cursor, 1);
+    }
+    catch(IllegalArgumentException e) {
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+        LoanStorageResource.GetLoanStorageLoansResponse.
+          withPlainBadRequest(e.getMessage())));
+
+      return;
+    }
+
+    String condition = postgresClient.getTiming().translate(query,
+      LoansAPI::loanCondition);
+
+    //Each page seeks past the last ID on the previous page using the primary
+    //key index, an extra record is fetched to know if there is another page
+    String afterPrevious = position.isFirstPage() ? "" : String.format(
+      "loan._id > %s", Sql.literal(
+        UUID.fromString(position.key(0)).toString()));
+
+    String filter = String.format("%s ORDER BY loan._id",
+      KeysetCursor.where(condition, afterPrevious));
+
+    StoredJson.page(postgresClient, tenantId, LOAN_TABLE, filter, 0, limit + 1,
+      false, reply -> {
+        try {
+          if(reply.succeeded()) {
+            List<String> loans = reply.result().getRecords();
+
+            String next = null;
+
+            if(loans.size() > limit) {
+              loans = loans.subList(0, limit);
+              next = KeysetCursor.next(reply.result().getIds().get(limit - 1));
+            }
+
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              StoredJson.ok(StoredJson.collection("loans", loans, null, next))));
+          }
+          else {
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              LoanStorageResource.GetLoanStorageLoansResponse.
+                withPlainInternalServerError(reply.cause().getMessage())));
+          }
+        } catch (Exception e) {
+          log.error(e.getMessage(), e);
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            LoanStorageResource.GetLoanStorageLoansResponse.
+              withPlainInternalServerError(e.getMessage())));
+        }
+      });
+  }
+
   @Override
   public void postLoanStorageLoans(
     String lang,
     Loan entity,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "postLoanStorageLoans", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
@@ -159,9 +346,9 @@ public class LoansAPI implements LoanStorageResource {
     }
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
       vertxContext.runOnContext(v -> {
         try {
@@ -170,17 +357,21 @@ public class LoansAPI implements LoanStorageResource {
             entity.setId(UUID.randomUUID().toString());
           }
 
-          postgresClient.save(LOAN_TABLE, entity.getId(), entity,
-            reply -> {
+          String json = PostgresClient.pojo2json(entity);
+
+          Insert.insert(postgresClient, tenantId, LOAN_TABLE,
+            entity.getId(), json, reply -> {
               try {
                 if(reply.succeeded()) {
-                  OutStream stream = new OutStream();
-                  stream.setData(entity);
-
+                  asyncResultHandler.handle(
+                    io.vertx.core.Future.succeededFuture(
+                      StoredJson.created(entity.getId(), json)));
+                }
+                else if(isOpenLoanConflict(reply.cause())) {
                   asyncResultHandler.handle(
                     io.vertx.core.Future.succeededFuture(
                       LoanStorageResource.PostLoanStorageLoansResponse
-                        .withJsonCreated(reply.result(), stream)));
+                        .withPlainBadRequest(openLoanConflictMessage(entity))));
                 }
                 else {
                   asyncResultHandler.handle(
@@ -217,38 +408,31 @@ public class LoansAPI implements LoanStorageResource {
     String loanId,
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getLoanStorageLoansByLoanId", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient = PostgresClient.getInstance(
-        vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
-
-      Criteria a = new Criteria();
-
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(loanId);
-
-      Criterion criterion = new Criterion(a);
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.get(LOAN_TABLE, LOAN_CLASS, criterion, true, false,
+          StoredJson.byId(postgresClient, tenantId, LOAN_TABLE, loanId,
             reply -> {
               try {
                 if (reply.succeeded()) {
-                  List<Loan> loans = (List<Loan>) reply.result()[0];
-
-                  if (loans.size() == 1) {
-                    Loan loan = loans.get(0);
-
+                  if (reply.result() != null) {
                     asyncResultHandler.handle(
                       io.vertx.core.Future.succeededFuture(
-                        LoanStorageResource.GetLoanStorageLoansByLoanIdResponse.
-                          withJsonOK(loan)));
+                        StoredJson.ok(reply.result())));
                   }
                   else {
                     asyncResultHandler.handle(
@@ -290,27 +474,26 @@ public class LoansAPI implements LoanStorageResource {
     String loanId,
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "deleteLoanStorageLoansByLoanId", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
-
-      Criteria a = new Criteria();
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(loanId);
-
-      Criterion criterion = new Criterion(a);
+      String delete = PrimaryKey.delete(tenantId, LOAN_TABLE, loanId);
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.delete(LOAN_TABLE, criterion,
+          postgresClient.mutate(delete,
             reply -> {
               if(reply.succeeded()) {
                 asyncResultHandler.handle(
@@ -342,8 +525,13 @@ public class LoansAPI implements LoanStorageResource {
     String loanId,
     String lang,
     Loan entity, Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "putLoanStorageLoansByLoanId", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
@@ -360,98 +548,53 @@ public class LoansAPI implements LoanStorageResource {
     }
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
-      Criteria a = new Criteria();
+      if(entity.getId() == null) {
+        entity.setId(loanId);
+      }
 
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(loanId);
+      //IDs are UUIDs, so are the same regardless of case
+      if(!loanId.equalsIgnoreCase(entity.getId())) {
+        asyncResultHandler.handle(
+          io.vertx.core.Future.succeededFuture(
+            PutLoanStorageLoansByLoanIdResponse
+              .withPlainBadRequest("id in body does not match path")));
 
-      Criterion criterion = new Criterion(a);
+        return;
+      }
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.get(LOAN_TABLE, LOAN_CLASS, criterion, true, false,
+          Upsert.upsert(postgresClient, tenantId, LOAN_TABLE, loanId, entity,
             reply -> {
-              if(reply.succeeded()) {
-                List<Loan> loanList = (List<Loan>) reply.result()[0];
-
-                if (loanList.size() == 1) {
-                  try {
-                    postgresClient.update(LOAN_TABLE, entity, criterion,
-                      true,
-                      update -> {
-                        try {
-                          if(update.succeeded()) {
-                            OutStream stream = new OutStream();
-                            stream.setData(entity);
-
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutLoanStorageLoansByLoanIdResponse
-                                  .withNoContent()));
-                          }
-                          else {
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutLoanStorageLoansByLoanIdResponse
-                                  .withPlainInternalServerError(
-                                    update.cause().getMessage())));
-                          }
-                        } catch (Exception e) {
-                          asyncResultHandler.handle(
-                            Future.succeededFuture(
-                              PutLoanStorageLoansByLoanIdResponse
-                                .withPlainInternalServerError(e.getMessage())));
-                        }
-                      });
-                  } catch (Exception e) {
-                    asyncResultHandler.handle(Future.succeededFuture(
+              try {
+                if(reply.succeeded()) {
+                  asyncResultHandler.handle(
+                    Future.succeededFuture(
                       PutLoanStorageLoansByLoanIdResponse
-                        .withPlainInternalServerError(e.getMessage())));
-                  }
+                        .withNoContent()));
+                }
+                else if(isOpenLoanConflict(reply.cause())) {
+                  asyncResultHandler.handle(
+                    Future.succeededFuture(
+                      PutLoanStorageLoansByLoanIdResponse
+                        .withPlainBadRequest(openLoanConflictMessage(entity))));
                 }
                 else {
-                  try {
-                    postgresClient.save(LOAN_TABLE, entity.getId(), entity,
-                      save -> {
-                        try {
-                          if(save.succeeded()) {
-                            OutStream stream = new OutStream();
-                            stream.setData(entity);
-
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutLoanStorageLoansByLoanIdResponse
-                                  .withNoContent()));
-                          }
-                          else {
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutLoanStorageLoansByLoanIdResponse
-                                  .withPlainInternalServerError(
-                                    save.cause().getMessage())));
-                          }
-                        } catch (Exception e) {
-                          asyncResultHandler.handle(
-                            Future.succeededFuture(
-                              PutLoanStorageLoansByLoanIdResponse
-                                .withPlainInternalServerError(e.getMessage())));
-                        }
-                      });
-                  } catch (Exception e) {
-                    asyncResultHandler.handle(Future.succeededFuture(
+                  asyncResultHandler.handle(
+                    Future.succeededFuture(
                       PutLoanStorageLoansByLoanIdResponse
-                        .withPlainInternalServerError(e.getMessage())));
-                  }
+                        .withPlainInternalServerError(
+                          reply.cause().getMessage())));
                 }
-              } else {
-                asyncResultHandler.handle(Future.succeededFuture(
-                  PutLoanStorageLoansByLoanIdResponse
-                    .withPlainInternalServerError(reply.cause().getMessage())));
+              } catch (Exception e) {
+                asyncResultHandler.handle(
+                  Future.succeededFuture(
+                    PutLoanStorageLoansByLoanIdResponse
+                      .withPlainInternalServerError(e.getMessage())));
               }
             });
         } catch (Exception e) {
@@ -467,6 +610,85 @@ public class LoansAPI implements LoanStorageResource {
     }
   }
 
+  //Uses the indexed columns when possible, CQL2PgJSON otherwise
+  private static String loanCondition(String query) throws Exception {
+    String indexedCondition = LOAN_INDEXES.whereClause(query);
+
+    return indexedCondition != null
+      ? indexedCondition
+      : LOAN_INDEXES.narrowed(query,
+          cql -> new CQL2PgJSON("loan.jsonb").cql2pgJson(cql));
+  }
+
+  /**
+   * @return the WHERE (and optional ORDER BY) clause used when searching
+   * for loans
+   */
+  public static String loanFilter(String query) throws Exception {
+    //Queries only using indexed properties are translated directly
+    //so that PostgreSQL can use the indexed columns, others are narrowed
+    //by any indexed terms before applying CQL2PgJSON's conditions
+    String indexedFilter = LOAN_INDEXES.toSql(query);
+
+    return indexedFilter != null
+      ? indexedFilter
+      : "WHERE " + LOAN_INDEXES.narrowed(query,
+          cql -> new CQL2PgJSON("loan.jsonb").cql2pgJson(cql));
+  }
+
+  /**
+   * @return the filter for the open loan for an item when the query is only
+   * for that (itemId=X and status.name=Open), otherwise null
+   */
+  public static String openLoanFilter(String query) {
+    //Avoids parsing queries that cannot be for an open loan
+    if(query == null || !query.contains("itemId")
+      || !query.toLowerCase().contains("open")) {
+      return null;
+    }
+
+    Map<String, CQLTermNode> terms = LOAN_INDEXES.plainTerms(query);
+
+    if(terms == null || terms.size() != 2) {
+      return null;
+    }
+
+    CQLTermNode itemId = terms.get("itemId");
+    CQLTermNode status = terms.get("status.name");
+
+    if(itemId == null || status == null
+      || !LOAN_INDEXES.isEquality("itemId", itemId.getRelation().getBase(),
+        itemId.getTerm())
+      || !isOpenStatus(status)) {
+      return null;
+    }
+
+    //There can only be one open loan for an item, so it is fetched
+    //from the partial unique index
+    //(which is on the JSON, so that it applies to any item ID)
+    return String.format("WHERE %s = %s AND %s = 'Open'",
+      LOAN_INDEXES.expression("itemId"),
+      Sql.literal(itemId.getTerm()),
+      LOAN_INDEXES.expression("status.name"));
+  }
+
+  //status.name=open is a case insensitive match of the only word in the name
+  private static boolean isOpenStatus(CQLTermNode status) {
+    return "==".equals(status.getRelation().getBase())
+      ? "Open".equals(status.getTerm())
+      : "Open".equalsIgnoreCase(status.getTerm());
+  }
+
+  private boolean isOpenLoanConflict(Throwable cause) {
+    return cause != null && cause.getMessage() != null
+      && cause.getMessage().contains(OPEN_LOAN_INDEX);
+  }
+
+  private String openLoanConflictMessage(Loan loan) {
+    return String.format("Cannot have more than one open loan for item %s",
+      loan.getItemId());
+  }
+
   private ImmutablePair<Boolean, String> validateLoan(Loan loan) {
 
     Boolean valid = true;
@@ -497,81 +719,739 @@ public class LoansAPI implements LoanStorageResource {
 
   @Validate
   @Override
-  public void getLoanStorageLoanHistory(int offset, int limit, String query, String lang,
-      Map<String, String> okapiHeaders, Handler<AsyncResult<Response>> asyncResultHandler,
+  public void getLoanStorageLoanHistory(int offset, int limit, String query,
+      String cursor, String lang,
+      Map<String, String> okapiHeaders, Handler<AsyncResult<Response>> responseHandler,
       Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getLoanStorageLoanHistory", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
       vertxContext.runOnContext(v -> {
         try {
-          PostgresClient postgresClient = PostgresClient.getInstance(
-            vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
-
-          String[] fieldList = {"*"};
-          CQLWrapper cql = null;
-          String adjustedQuery = null;
-          if(query != null){
-            //a bit of a hack, assume that <space>sortBy<space>
-            //is a sort request that is received as part of the cql , and hence pass
-            //the cql as is. If no sorting is requested, sort by created_date column
-            //in the loan history table which represents the date the entry was created
-            //aka the date an action was made on the loan
-            CQL2PgJSON cql2pgJson = new CQL2PgJSON(LOAN_HISTORY_TABLE+".jsonb");
-            if(!query.contains(" sortBy ")){
-              cql = new CQLWrapper(cql2pgJson, query);
-              adjustedQuery = cql.toString() + " order by created_date desc ";
-              adjustedQuery = adjustedQuery + new Limit(limit).toString() + " " +new Offset(offset).toString();
-            } else{
-              cql = new CQLWrapper(cql2pgJson, query)
-                  .setLimit(new Limit(limit))
-                  .setOffset(new Offset(offset));
-              adjustedQuery = cql.toString();
+          TimedPostgresClient postgresClient = timing.client(
+            PostgresClient.getInstance(vertxContext.owner(),
+              TenantTool.calculateTenantId(tenantId)));
+
+          //Queued history is moved first, so that none is missing
+          LoanHistoryQueue.flushIfQueued(vertxContext.owner(),
+            postgresClient.untimed(), tenantId, flushed -> {
+            try {
+              if(flushed.failed()) {
+                log.error(flushed.cause().getMessage(), flushed.cause());
+                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                  GetLoanStorageLoanHistoryResponse.
+                    withPlainInternalServerError(flushed.cause().getMessage())));
+
+                return;
+              }
+
+              getLoanHistory(postgresClient, tenantId, offset, limit, query,
+                cursor, asyncResultHandler);
+            } catch (Exception e) {
+              log.error(e.getMessage(), e);
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                GetLoanStorageLoanHistoryResponse.
+                  withPlainInternalServerError(e.getMessage())));
             }
-            System.out.println("CQL Query: " + cql.toString());
+          });
+        } catch (Exception e) {
+          log.error(e.getMessage(), e);
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            GetLoanStorageLoanHistoryResponse.
+              withPlainInternalServerError(e.getMessage())));
+        }
+      });
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+        GetLoanStorageLoanHistoryResponse.
+          withPlainInternalServerError(e.getMessage())));
+    }
+  }
+
+  private void getLoanHistory(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    int offset,
+    int limit,
+    String query,
+    String cursor,
+    Handler<AsyncResult<Response>> asyncResultHandler) throws Exception {
+
+    if(cursor != null) {
+      getLoanHistoryAfterCursor(postgresClient, tenantId, query, cursor,
+        limit, asyncResultHandler);
+
+      return;
+    }
+
+    String adjustedQuery;
+    if(query != null && query.contains(" sortBy ")){
+      //a bit of a hack, assume that <space>sortBy<space>
+      //is a sort request that is received as part of the cql , and hence pass
+      //the cql as is. If no sorting is requested, sort by created_date column
+      //in the loan history table which represents the date the entry was created
+      //aka the date an action was made on the loan
+      //(with the id as a tie breaker, both of which are indexed)
+      adjustedQuery = postgresClient.getTiming().translate(query, sortedQuery ->
+        new CQLWrapper(new CQL2PgJSON(LOAN_HISTORY_TABLE + ".jsonb"), sortedQuery)
+          .toString());
+    } else{
+      adjustedQuery = String.format(
+        "%s ORDER BY created_date DESC, _id DESC",
+        KeysetCursor.where(postgresClient.getTiming().translate(query,
+          this::loanHistoryCondition)));
+    }
+
+    String from = String.format("%s_%s.%s %s", tenantId,
+      "mod_circulation_storage", LOAN_HISTORY_TABLE, adjustedQuery);
+
+    //The window function counts the matching history before the limit
+    String sql = String.format("SELECT %s, count(*) OVER () FROM %s %s %s",
+      LoanHistoryDeltas.COLUMNS, from, new Limit(limit), new Offset(offset));
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        log.error(reply.cause().getMessage(), reply.cause());
+        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+          GetLoanStorageLoanHistoryResponse.
+            withPlainInternalServerError(reply.cause().getMessage())));
+
+        return;
+      }
+
+      List<JsonArray> rows = reply.result().getResults();
+
+      if(rows.isEmpty() && offset > 0) {
+        //A page past the end has no rows to carry the count
+        StoredJson.count(postgresClient, from, counted -> {
+          if(counted.succeeded()) {
+            Loans pagedLoans = new Loans();
+            pagedLoans.setLoans(new ArrayList<>());
+            pagedLoans.setTotalRecords(counted.result());
+
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              GetLoanStorageLoanHistoryResponse.
+                withJsonOK(pagedLoans)));
           }
+          else {
+            log.error(counted.cause().getMessage(), counted.cause());
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              GetLoanStorageLoanHistoryResponse.
+                withPlainInternalServerError(counted.cause().getMessage())));
+          }
+        });
 
-          postgresClient.get(LOAN_HISTORY_TABLE, LOAN_CLASS, fieldList, adjustedQuery,
-            true, false, reply -> {
-              try {
-                if(reply.succeeded()) {
-                  List<Loan> loans = (List<Loan>) reply.result()[0];
+        return;
+      }
 
-                  Loans pagedLoans = new Loans();
-                  pagedLoans.setLoans(loans);
-                  pagedLoans.setTotalRecords((Integer)reply.result()[1]);
+      LoanHistoryDeltas.rebuild(postgresClient, tenantId, rows, rebuilt -> {
+        try {
+          if(rebuilt.succeeded()) {
+            Loans pagedLoans = new Loans();
+            pagedLoans.setLoans(toLoans(rebuilt.result()));
+            pagedLoans.setTotalRecords(rows.isEmpty() ? 0
+              : rows.get(0).getLong(rows.get(0).size() - 1).intValue());
 
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                    GetLoanStorageLoanHistoryResponse.
-                      withJsonOK(pagedLoans)));
-                }
-                else {
-                  log.error(reply.cause().getMessage(), reply.cause());
-                  asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                    GetLoanStorageLoanHistoryResponse.
-                      withPlainInternalServerError(reply.cause().getMessage())));
-                }
-              } catch (Exception e) {
-                log.error(e.getMessage(), e);
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              GetLoanStorageLoanHistoryResponse.
+                withJsonOK(pagedLoans)));
+          }
+          else {
+            log.error(rebuilt.cause().getMessage(), rebuilt.cause());
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              GetLoanStorageLoanHistoryResponse.
+                withPlainInternalServerError(rebuilt.cause().getMessage())));
+          }
+        } catch (Exception e) {
+          log.error(e.getMessage(), e);
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            GetLoanStorageLoanHistoryResponse.
+              withPlainInternalServerError(e.getMessage())));
+        }
+      });
+    });
+  }
+
+  private void getLoanHistoryAfterCursor(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String query,
+    String cursor,
+    int limit,
+    Handler<AsyncResult<Response>> asyncResultHandler) throws Exception {
+
+    KeysetCursor position;
+
+    try {
+      if(IndexedCqlTranslator.hasSort(query)) {
+        throw new IllegalArgumentException(
+          "Sorting cannot be combined with a cursor");
+      }
+
+      position = KeysetCursor.parse(cursor, 2);
+    }
+    catch(IllegalArgumentException e) {
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+        GetLoanStorageLoanHistoryResponse.withPlainBadRequest(e.getMessage())));
+
+      return;
+    }
+
+    String condition = postgresClient.getTiming().translate(query,
+      this::loanHistoryCondition);
+
+    selectLoanHistory(postgresClient, tenantId, condition, position, 0, limit,
+      reply -> {
+        if(reply.succeeded()) {
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            GetLoanStorageLoanHistoryResponse.withJsonOK(reply.result())));
+        }
+        else {
+          log.error(reply.cause().getMessage(), reply.cause());
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            GetLoanStorageLoanHistoryResponse.
+              withPlainInternalServerError(reply.cause().getMessage())));
+        }
+      });
+  }
+
+  @Override
+  public void getLoanStorageLoansHistoryByLoanId(
+    String loanId,
+    int offset,
+    int limit,
+    String cursor,
+    Map<String, String> okapiHeaders,
+    Handler<AsyncResult<Response>> responseHandler,
+    Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getLoanStorageLoansHistoryByLoanId", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
+
+    String tenantId = okapiHeaders.get(TENANT_HEADER);
+
+    KeysetCursor position;
+    UUID id;
+
+    try {
+      position = KeysetCursor.parse(
+        cursor == null ? KeysetCursor.FIRST_PAGE : cursor, 2);
+
+      id = UUID.fromString(loanId);
+    }
+    catch(IllegalArgumentException e) {
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+        GetLoanStorageLoansHistoryByLoanIdResponse
+          .withPlainBadRequest(e.getMessage())));
+
+      return;
+    }
+
+    //Uses the (orig_id, created_date, _id) index on each partition
+    String condition = String.format("orig_id = %s::uuid",
+      Sql.literal(id.toString()));
+
+    vertxContext.runOnContext(v -> {
+      try {
+        TimedPostgresClient postgresClient = timing.client(
+          PostgresClient.getInstance(vertxContext.owner(),
+            TenantTool.calculateTenantId(tenantId)));
+
+        LoanHistoryQueue.flushIfQueued(vertxContext.owner(),
+          postgresClient.untimed(), tenantId, flushed -> {
+          if(flushed.failed()) {
+            log.error(flushed.cause().getMessage(), flushed.cause());
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              GetLoanStorageLoansHistoryByLoanIdResponse.
+                withPlainInternalServerError(flushed.cause().getMessage())));
+
+            return;
+          }
+
+          selectLoanHistory(postgresClient, tenantId, condition, position,
+            cursor == null ? offset : 0, limit, reply -> {
+              if(reply.succeeded()) {
                 asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                  GetLoanStorageLoanHistoryResponse.
-                    withPlainInternalServerError(e.getMessage())));
+                  GetLoanStorageLoansHistoryByLoanIdResponse
+                    .withJsonOK(reply.result())));
+              }
+              else {
+                log.error(reply.cause().getMessage(), reply.cause());
+                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                  GetLoanStorageLoansHistoryByLoanIdResponse.
+                    withPlainInternalServerError(reply.cause().getMessage())));
+              }
+            });
+        });
+      } catch (Exception e) {
+        log.error(e.getMessage(), e);
+        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+          GetLoanStorageLoansHistoryByLoanIdResponse.
+            withPlainInternalServerError(e.getMessage())));
+      }
+    });
+  }
+
+  /**
+   * Reads a page of loan history, newest first, with a cursor for the next
+   * page when there are more records
+   *
+   * @param condition on the history table, without WHERE, can be empty
+   * @param offset number of records to skip, only used on the first page
+   */
+  private void selectLoanHistory(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String condition,
+    KeysetCursor position,
+    int offset,
+    int limit,
+    Handler<AsyncResult<Loans>> handler) {
+
+    //History is ordered newest first, the created date is kept as text
+    //as the driver would truncate it to milliseconds. The separate bound on
+    //the created date excludes the partitions for later months
+    String afterPrevious = position.isFirstPage() ? "" : String.format(
+      "created_date <= %1$s::timestamp" +
+        " AND (created_date, _id) < (%1$s::timestamp, %2$s::uuid)",
+      Sql.literal(position.key(0)),
+      Sql.literal(
+        UUID.fromString(position.key(1)).toString()));
+
+    String sql = String.format(
+      "SELECT %s FROM %s_%s.%s %s ORDER BY created_date DESC, _id DESC %s %s",
+      LoanHistoryDeltas.COLUMNS, tenantId, "mod_circulation_storage",
+      LOAN_HISTORY_TABLE,
+      KeysetCursor.where(condition, afterPrevious), new Limit(limit + 1),
+      new Offset(position.isFirstPage() ? offset : 0));
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(io.vertx.core.Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      List<JsonArray> rows = reply.result().getResults();
+      List<JsonArray> page = rows.subList(0, Math.min(limit, rows.size()));
+
+      LoanHistoryDeltas.rebuild(postgresClient, tenantId, page, rebuilt -> {
+        try {
+          if(rebuilt.failed()) {
+            handler.handle(io.vertx.core.Future.failedFuture(rebuilt.cause()));
+            return;
+          }
+
+          Loans pagedLoans = new Loans();
+
+          if(rows.size() > limit) {
+            JsonArray last = rows.get(limit - 1);
+            pagedLoans.setNext(KeysetCursor.next(last.getString(1),
+              last.getString(0)));
+          }
+
+          pagedLoans.setLoans(toLoans(rebuilt.result()));
+
+          handler.handle(io.vertx.core.Future.succeededFuture(pagedLoans));
+        } catch (Exception e) {
+          handler.handle(io.vertx.core.Future.failedFuture(e));
+        }
+      });
+    });
+  }
+
+  private static List<Loan> toLoans(List<JsonObject> documents) {
+    List<Loan> loans = new ArrayList<>();
+
+    for(JsonObject document : documents) {
+      loans.add(Json.decodeValue(document.encode(), Loan.class));
+    }
+
+    return loans;
+  }
+
+  //Uses the history indexes when possible, CQL2PgJSON otherwise
+  private String loanHistoryCondition(String query) throws Exception {
+    String indexed = LOAN_HISTORY_INDEXES.whereClause(query);
+
+    return indexed != null
+      ? indexed
+      : LOAN_HISTORY_INDEXES.narrowed(query,
+          cql -> new CQL2PgJSON(LOAN_HISTORY_TABLE + ".jsonb").cql2pgJson(cql));
+  }
+
+  @Validate
+  @Override
+  public void getLoanStorageOverdueLoans(
+    String dueBefore,
+    int limit,
+    String cursor,
+    Map<String, String> okapiHeaders,
+    Handler<AsyncResult<Response>> responseHandler,
+    Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getLoanStorageOverdueLoans", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
+
+    String tenantId = okapiHeaders.get(TENANT_HEADER);
+
+    KeysetCursor position;
+    DateTime overdueAt;
+
+    try {
+      position = KeysetCursor.parse(
+        cursor == null ? KeysetCursor.FIRST_PAGE : cursor, 2);
+
+      overdueAt = dueBefore == null ? DateTime.now() : DateTime.parse(dueBefore);
+    }
+    catch(IllegalArgumentException e) {
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+        GetLoanStorageOverdueLoansResponse.withPlainBadRequest(e.getMessage())));
+
+      return;
+    }
+
+    //Both conditions match the partial index of open loans by due date,
+    //so each page is a range scan that starts after the previous page
+    String overdue = String.format(
+      "loan.status_name = 'Open' AND loan.due_date < %s::timestamptz",
+      Sql.literal(overdueAt.toString()));
+
+    String afterPrevious = position.isFirstPage() ? "" : String.format(
+      "(loan.due_date, loan._id) > (%s::timestamptz, %s::uuid)",
+      Sql.literal(position.key(0)),
+      Sql.literal(
+        UUID.fromString(position.key(1)).toString()));
+
+    String sql = String.format(
+      "SELECT loan._id, loan.due_date::text, loan.jsonb::text FROM %s_%s.%s %s" +
+        " ORDER BY loan.due_date, loan._id %s",
+      tenantId, "mod_circulation_storage", LOAN_TABLE,
+      KeysetCursor.where(overdue, afterPrevious), new Limit(limit + 1));
+
+    vertxContext.runOnContext(v -> {
+      try {
+        TimedPostgresClient postgresClient = timing.client(
+          PostgresClient.getInstance(vertxContext.owner(),
+            TenantTool.calculateTenantId(tenantId)));
+
+        postgresClient.select(sql, reply -> {
+          try {
+            if(reply.failed()) {
+              log.error(reply.cause().getMessage(), reply.cause());
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                GetLoanStorageOverdueLoansResponse.
+                  withPlainInternalServerError(reply.cause().getMessage())));
+
+              return;
+            }
+
+            List<JsonArray> rows = reply.result().getResults();
+
+            List<String> loans = new ArrayList<>();
+
+            for(JsonArray row : rows.subList(0, Math.min(limit, rows.size()))) {
+              loans.add(row.getString(2));
+            }
+
+            String next = null;
+
+            if(rows.size() > limit) {
+              JsonArray last = rows.get(limit - 1);
+              next = KeysetCursor.next(last.getString(1), last.getString(0));
+            }
+
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              StoredJson.ok(StoredJson.collection("loans", loans, null, next))));
+          } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              GetLoanStorageOverdueLoansResponse.
+                withPlainInternalServerError(e.getMessage())));
+          }
+        });
+      } catch (Exception e) {
+        log.error(e.getMessage(), e);
+        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+          GetLoanStorageOverdueLoansResponse.
+            withPlainInternalServerError(e.getMessage())));
+      }
+    });
+  }
+
+  @Validate
+  @Override
+  public void postLoanStorageLoanBatch(
+    String lang,
+    Loans entity,
+    Map<String, String> okapiHeaders,
+    Handler<AsyncResult<Response>> responseHandler,
+    Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "postLoanStorageLoanBatch", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
+
+    String tenantId = okapiHeaders.get(TENANT_HEADER);
+
+    List<Loan> loans = entity.getLoans();
+
+    if(loans.size() > MAX_BATCH_SIZE) {
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+        PostLoanStorageLoanBatchResponse.withPlainBadRequest(String.format(
+          "A batch cannot have more than %s loans", MAX_BATCH_SIZE))));
+
+      return;
+    }
+
+    //Results are kept in the same order as the batch
+    List<LoanBatchResult> results = new ArrayList<>();
+    Map<String, LoanBatchResult> resultsById = new HashMap<>();
+    Map<String, Loan> batch = new LinkedHashMap<>();
+    Set<String> openLoanItemIds = new HashSet<>();
+
+    for(Loan loan : loans) {
+      if(loan.getId() == null) {
+        loan.setId(UUID.randomUUID().toString());
+      }
+
+      LoanBatchResult result = new LoanBatchResult();
+      result.setId(loan.getId());
+      results.add(result);
+
+      String failure = batchFailure(loan, batch, openLoanItemIds);
+
+      if(failure != null) {
+        result.setStatus(BATCH_FAILED);
+        result.setMessage(failure);
+      }
+      else {
+        batch.put(batchKey(loan), loan);
+        resultsById.put(batchKey(loan), result);
+
+        if(isOpen(loan)) {
+          openLoanItemIds.add(loan.getItemId());
+        }
+      }
+    }
+
+    try {
+      vertxContext.runOnContext(v -> {
+        try {
+          TimedPostgresClient postgresClient = timing.client(
+            PostgresClient.getInstance(vertxContext.owner(),
+              TenantTool.calculateTenantId(tenantId)));
+
+          Handler<AsyncResult<Void>> storedHandler = stored -> {
+            if(stored.succeeded()) {
+              LoanBatchResults batchResults = new LoanBatchResults();
+              batchResults.setResults(results);
+
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                PostLoanStorageLoanBatchResponse.withJsonOK(batchResults)));
+            }
+            else if(isOpenLoanConflict(stored.cause())) {
+              //Another open loan was stored for an item during the batch
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                PostLoanStorageLoanBatchResponse.withPlainBadRequest(
+                  "Cannot have more than one open loan for an item")));
+            }
+            else {
+              log.error(stored.cause().getMessage(), stored.cause());
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                PostLoanStorageLoanBatchResponse.
+                  withPlainInternalServerError(stored.cause().getMessage())));
+            }
+          };
+
+          excludeOpenLoanConflicts(postgresClient, tenantId, batch,
+            resultsById, excluded -> {
+              if(excluded.failed()) {
+                storedHandler.handle(excluded);
+                return;
               }
+
+              storeBatch(postgresClient, tenantId, batch, resultsById,
+                storedHandler);
             });
         } catch (Exception e) {
           log.error(e.getMessage(), e);
           asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-            GetLoanStorageLoanHistoryResponse.
+            PostLoanStorageLoanBatchResponse.
               withPlainInternalServerError(e.getMessage())));
         }
       });
     } catch (Exception e) {
       log.error(e.getMessage(), e);
       asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-        GetLoanStorageLoanHistoryResponse.
+        PostLoanStorageLoanBatchResponse.
           withPlainInternalServerError(e.getMessage())));
     }
+  }
+
+  /**
+   * @return why the loan cannot be included in the batch, or null if it can
+   */
+  private String batchFailure(
+    Loan loan,
+    Map<String, Loan> batch,
+    Set<String> openLoanItemIds) {
+
+    ImmutablePair<Boolean, String> validationResult = validateLoan(loan);
+
+    if(!validationResult.getLeft()) {
+      return validationResult.getRight();
+    }
+
+    try {
+      UUID.fromString(loan.getId());
+    }
+    catch(IllegalArgumentException e) {
+      return "id must be a UUID";
+    }
+
+    if(batch.containsKey(batchKey(loan))) {
+      return "loan is included more than once in the batch";
+    }
+
+    if(isOpen(loan) && openLoanItemIds.contains(loan.getItemId())) {
+      return openLoanConflictMessage(loan);
+    }
+
+    return null;
+  }
+
+  //IDs are returned from the database in lower case
+  private String batchKey(Loan loan) {
+    return UUID.fromString(loan.getId()).toString();
+  }
+
+  private boolean isOpen(Loan loan) {
+    return loan.getStatus() != null
+      && "Open".equals(loan.getStatus().getName());
+  }
+
+  /**
+   * Fails the open loans in the batch for items that already have an open
+   * loan which is not part of the batch, as a single conflict would
+   * otherwise fail the whole statement
+   */
+  private void excludeOpenLoanConflicts(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    Map<String, Loan> batch,
+    Map<String, LoanBatchResult> resultsById,
+    Handler<AsyncResult<Void>> handler) {
+
+    StringJoiner itemIds = new StringJoiner(", ");
+    StringJoiner loanIds = new StringJoiner(", ");
+
+    batch.values().forEach(loan -> {
+      loanIds.add(Sql.literal(loan.getId()) + "::uuid");
+
+      if(isOpen(loan)) {
+        itemIds.add(Sql.literal(loan.getItemId()));
+      }
+    });
+
+    if(itemIds.length() == 0) {
+      handler.handle(io.vertx.core.Future.succeededFuture());
+      return;
+    }
+
+    //Matches the partial unique index on open loans for an item
+    String sql = String.format(
+      "SELECT jsonb->>'itemId' FROM %s_%s.%s" +
+        " WHERE jsonb->'status'->>'name' = 'Open'" +
+        " AND jsonb->>'itemId' IN (%s) AND _id NOT IN (%s)",
+      tenantId, "mod_circulation_storage", LOAN_TABLE, itemIds, loanIds);
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(io.vertx.core.Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      Set<String> conflictingItemIds = new HashSet<>();
+
+      reply.result().getResults().forEach(row ->
+        conflictingItemIds.add(row.getString(0)));
+
+      batch.values().removeIf(loan -> {
+        if(isOpen(loan) && conflictingItemIds.contains(loan.getItemId())) {
+          LoanBatchResult result = resultsById.remove(batchKey(loan));
+          result.setStatus(BATCH_FAILED);
+          result.setMessage(openLoanConflictMessage(loan));
+
+          return true;
+        }
+
+        return false;
+      });
+
+      handler.handle(io.vertx.core.Future.succeededFuture());
+    });
+  }
+
+  /**
+   * Creates or replaces all of the loans in the batch using a single
+   * multi-row statement, so either all of them are stored or none are
+   */
+  private void storeBatch(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    Map<String, Loan> batch,
+    Map<String, LoanBatchResult> resultsById,
+    Handler<AsyncResult<Void>> handler) {
+
+    if(batch.isEmpty()) {
+      handler.handle(io.vertx.core.Future.succeededFuture());
+      return;
+    }
+
+    StringJoiner values = new StringJoiner(", ");
 
+    try {
+      for(Loan loan : batch.values()) {
+        values.add(String.format("(%s::uuid, %s::jsonb)",
+          Sql.literal(loan.getId()),
+          Sql.literal(PostgresClient.pojo2json(loan))));
+      }
+    }
+    catch(Exception e) {
+      handler.handle(io.vertx.core.Future.failedFuture(e));
+      return;
+    }
+
+    //xmax is only zero for rows that were inserted rather than updated
+    String sql = String.format(
+      "INSERT INTO %s_%s.%s (_id, jsonb) VALUES %s" +
+        " ON CONFLICT (_id) DO UPDATE SET jsonb = EXCLUDED.jsonb" +
+        " RETURNING _id, (xmax = 0) AS created",
+      tenantId, "mod_circulation_storage", LOAN_TABLE, values);
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(io.vertx.core.Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      reply.result().getResults().forEach(row ->
+        resultsById.get(row.getString(0)).setStatus(
+          row.getBoolean(1) ? BATCH_CREATED : BATCH_UPDATED));
+
+      handler.handle(io.vertx.core.Future.succeededFuture());
+    });
   }
 }
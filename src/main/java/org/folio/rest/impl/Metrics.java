@@ -0,0 +1,273 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+
+import javax.ws.rs.core.Response;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request counts, error counts and latencies for each endpoint and tenant,
+ * in this instance of the module, and the counters of the in-memory caches
+ *
+ * Recording only increments counters (see {@link LatencyHistogram}), so is
+ * cheap enough to do on the event loop for every request. They are rendered
+ * in the Prometheus text format by {@link #prometheus(String)}.
+ */
+public class Metrics {
+
+  private static final String PREFIX = "circulation_storage_";
+
+  private static class EndpointMetrics {
+    private final String endpoint;
+    private final String tenantId;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private EndpointMetrics(String endpoint, String tenantId) {
+      this.endpoint = endpoint;
+      this.tenantId = tenantId;
+    }
+  }
+
+  private static class DatabaseMetrics {
+    private final String endpoint;
+    private final String tenantId;
+    private final String phase;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private DatabaseMetrics(String endpoint, String tenantId, String phase) {
+      this.endpoint = endpoint;
+      this.tenantId = tenantId;
+      this.phase = phase;
+    }
+  }
+
+  private static class CacheCounters {
+    private final LongSupplier hits;
+    private final LongSupplier misses;
+
+    private CacheCounters(LongSupplier hits, LongSupplier misses) {
+      this.hits = hits;
+      this.misses = misses;
+    }
+  }
+
+  private static final ConcurrentMap<String, EndpointMetrics> endpoints =
+    new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, DatabaseMetrics> databasePhases =
+    new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, CacheCounters> caches =
+    new ConcurrentHashMap<>();
+
+  private Metrics() { }
+
+  /**
+   * @param endpoint name of the method handling the request
+   * @return a handler that records the request when it responds, then passes
+   * the response to the handler given
+   */
+  public static Handler<AsyncResult<Response>> recorded(
+    String endpoint,
+    String tenantId,
+    Handler<AsyncResult<Response>> handler) {
+
+    long started = System.nanoTime();
+
+    return response -> {
+      record(endpoint, tenantId, System.nanoTime() - started, isError(response));
+
+      handler.handle(response);
+    };
+  }
+
+  static void record(
+    String endpoint,
+    String tenantId,
+    long nanoseconds,
+    boolean error) {
+
+    String tenant = tenantId == null ? "" : tenantId;
+
+    EndpointMetrics metrics = endpoints.computeIfAbsent(endpoint + " " + tenant,
+      key -> new EndpointMetrics(endpoint, tenant));
+
+    metrics.requests.increment();
+    metrics.latency.record(nanoseconds);
+
+    if(error) {
+      metrics.errors.increment();
+    }
+  }
+
+  /**
+   * Records the time a request spent in a phase of working with the
+   * database (see {@link RequestTiming})
+   */
+  static void recordDatabase(
+    String endpoint,
+    String tenantId,
+    String phase,
+    long nanoseconds) {
+
+    String tenant = tenantId == null ? "" : tenantId;
+
+    databasePhases.computeIfAbsent(endpoint + " " + tenant + " " + phase,
+      key -> new DatabaseMetrics(endpoint, tenant, phase))
+      .latency.record(nanoseconds);
+  }
+
+  /**
+   * Includes the counters of a cache in the metrics, replacing any
+   * registered with the same name
+   */
+  public static void registerCache(
+    String name,
+    LongSupplier hits,
+    LongSupplier misses) {
+
+    caches.put(name, new CacheCounters(hits, misses));
+  }
+
+  /**
+   * @return the metrics of the tenant in the Prometheus text exposition
+   * format, together with the counters of the caches, which are shared by
+   * all tenants so have no tenant label
+   */
+  public static String prometheus(String tenantId) {
+    String tenant = tenantId == null ? "" : tenantId;
+
+    //Sorted, so that the output is stable between scrapes
+    Map<String, EndpointMetrics> sortedEndpoints = new TreeMap<>();
+    Map<String, DatabaseMetrics> sortedPhases = new TreeMap<>();
+
+    endpoints.forEach((key, metrics) -> {
+      if(metrics.tenantId.equals(tenant)) {
+        sortedEndpoints.put(key, metrics);
+      }
+    });
+
+    databasePhases.forEach((key, metrics) -> {
+      if(metrics.tenantId.equals(tenant)) {
+        sortedPhases.put(key, metrics);
+      }
+    });
+    Map<String, CacheCounters> sortedCaches = new TreeMap<>(caches);
+
+    StringBuilder text = new StringBuilder();
+
+    header(text, "requests_total", "counter",
+      "Requests handled, by endpoint and tenant");
+
+    sortedEndpoints.values().forEach(metrics ->
+      sample(text, "requests_total", labels(metrics), metrics.requests.sum()));
+
+    header(text, "errors_total", "counter",
+      "Requests that failed with a server error, by endpoint and tenant");
+
+    sortedEndpoints.values().forEach(metrics ->
+      sample(text, "errors_total", labels(metrics), metrics.errors.sum()));
+
+    header(text, "request_duration_seconds", "histogram",
+      "Time taken to respond to requests, by endpoint and tenant");
+
+    sortedEndpoints.values().forEach(metrics -> histogram(text,
+      "request_duration_seconds", labels(metrics), metrics.latency));
+
+    header(text, "database_duration_seconds", "histogram",
+      "Time requests spent translating CQL, executing statements and" +
+        " mapping results, by endpoint and tenant");
+
+    sortedPhases.values().forEach(metrics -> histogram(text,
+      "database_duration_seconds", String.format(
+        "endpoint=\"%s\",tenant=\"%s\",phase=\"%s\"",
+        escape(metrics.endpoint), escape(metrics.tenantId),
+        escape(metrics.phase)),
+      metrics.latency));
+
+    header(text, "cache_hits_total", "counter", "Hits of in-memory caches");
+
+    sortedCaches.forEach((name, counters) -> sample(text, "cache_hits_total",
+      "cache=\"" + escape(name) + "\"", counters.hits.getAsLong()));
+
+    header(text, "cache_misses_total", "counter", "Misses of in-memory caches");
+
+    sortedCaches.forEach((name, counters) -> sample(text, "cache_misses_total",
+      "cache=\"" + escape(name) + "\"", counters.misses.getAsLong()));
+
+    return text.toString();
+  }
+
+  private static boolean isError(AsyncResult<Response> response) {
+    return response.failed() || response.result() == null
+      || response.result().getStatus() >= 500;
+  }
+
+  private static void header(
+    StringBuilder text,
+    String name,
+    String type,
+    String help) {
+
+    text.append("# HELP ").append(PREFIX).append(name).append(" ")
+      .append(help).append("\n")
+      .append("# TYPE ").append(PREFIX).append(name).append(" ")
+      .append(type).append("\n");
+  }
+
+  private static void sample(
+    StringBuilder text,
+    String name,
+    String labels,
+    long value) {
+
+    text.append(PREFIX).append(name).append("{").append(labels).append("} ")
+      .append(value).append("\n");
+  }
+
+  private static void histogram(
+    StringBuilder text,
+    String name,
+    String labels,
+    LatencyHistogram histogram) {
+
+    long[] counts = histogram.cumulativeCounts();
+    long[] bounds = LatencyHistogram.BUCKET_BOUNDS_MILLISECONDS;
+
+    for(int index = 0; index < counts.length; index++) {
+      String upperBound = index < bounds.length
+        ? String.valueOf(bounds[index] / 1000.0)
+        : "+Inf";
+
+      sample(text, name + "_bucket", labels + ",le=\"" + upperBound + "\"",
+        counts[index]);
+    }
+
+    text.append(PREFIX).append(name).append("_sum{").append(labels).append("} ")
+      .append(String.format(Locale.ROOT, "%.6f", histogram.sumSeconds()))
+      .append("\n");
+
+    sample(text, name + "_count", labels, counts[counts.length - 1]);
+  }
+
+  private static String labels(EndpointMetrics metrics) {
+    return String.format("endpoint=\"%s\",tenant=\"%s\"",
+      escape(metrics.endpoint), escape(metrics.tenantId));
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"")
+      .replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,34 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import org.folio.rest.jaxrs.resource.CirculationStorageResource;
+
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+import static org.folio.rest.impl.Headers.TENANT_HEADER;
+
+public class MetricsAPI implements CirculationStorageResource {
+
+  @Override
+  public void getCirculationStorageMetrics(
+    Map<String, String> okapiHeaders,
+    Handler<AsyncResult<Response>> asyncResultHandler,
+    Context vertxContext) throws Exception {
+
+    //Only those of the calling tenant, so that one tenant cannot see
+    //the activity of another
+    String metrics = Metrics.prometheus(okapiHeaders.get(TENANT_HEADER));
+
+    //Built directly, as the generated response only allows text/plain
+    //without the version of the exposition format
+    asyncResultHandler.handle(Future.succeededFuture(
+      Response.status(200)
+        .header("Content-Type", "text/plain; version=0.0.4")
+        .entity(metrics)
+        .build()));
+  }
+}
@@ -0,0 +1,41 @@
+package org.folio.rest.impl;
+
+import java.util.regex.Pattern;
+
+/**
+ * Finds a record by ID using the primary key
+ *
+ * Criteria on 'id' compare jsonb->>'id', which has no index, so every read,
+ * update or delete of a single record scanned the whole table. The ID in the
+ * JSON always matches _id (a check constraint in template_create_tenant.sql
+ * guarantees it), so the primary key can be used instead.
+ */
+public class PrimaryKey {
+
+  private static final Pattern UUID = Pattern.compile(
+    "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}" +
+      "-[0-9a-fA-F]{12}$");
+
+  private PrimaryKey() { }
+
+  /**
+   * @return a WHERE clause matching the record with the ID, which matches
+   * nothing when the ID is not a UUID (as it cannot be in the table)
+   */
+  public static String filter(String table, String id) {
+    if(id == null || !UUID.matcher(id).matches()) {
+      return "WHERE false";
+    }
+
+    return String.format("WHERE %s._id = %s::uuid", table,
+      Sql.literal(id));
+  }
+
+  /**
+   * @return a statement that deletes the record with the ID, if there is one
+   */
+  public static String delete(String tenantId, String table, String id) {
+    return String.format("DELETE FROM %s_%s.%s %s",
+      tenantId, "mod_circulation_storage", table, filter(table, id));
+  }
+}
@@ -0,0 +1,182 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.folio.rest.persist.PostgresClient;
+
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Breaks down the time a request spends working with the database
+ *
+ * The time is split into translating CQL into SQL, executing statements
+ * (including waiting for a pooled connection) and mapping the results into
+ * the response (from the last statement finishing until the response is
+ * handed on). Each phase is recorded in {@link Metrics}.
+ *
+ * When the total is at least the slow query threshold (the
+ * {@value #SLOW_QUERY_THRESHOLD_PROPERTY} system property, in milliseconds)
+ * the request is logged as a JSON object with the tenant, CQL, SQL and
+ * number of rows, so that a slow search can be reproduced. The terms of the
+ * CQL and the literals of the SQL are replaced by ?, as they can include
+ * patron details (e.g. the JSON of a loan or request being stored).
+ *
+ * Only used on the request's context, so it is not synchronised.
+ */
+public class RequestTiming {
+
+  @FunctionalInterface
+  public interface Translation<T> {
+    T translate(String cql) throws Exception;
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(RequestTiming.class);
+
+  static final String SLOW_QUERY_THRESHOLD_PROPERTY =
+    "circulation-storage.slow-query-threshold-milliseconds";
+
+  //A term following a relation, either quoted or up to the next whitespace
+  private static final Pattern CQL_TERM = Pattern.compile(
+    "(==|<>|<=|>=|=|<|>)(\\s*)(\"(?:[^\"\\\\]|\\\\.)*\"|[^\\s()\"]+)");
+
+  //A quoted string constant, in which a quote is escaped by doubling it
+  private static final Pattern SQL_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+  private static final long SLOW_QUERY_THRESHOLD_NANOSECONDS =
+    TimeUnit.MILLISECONDS.toNanos(
+      Long.getLong(SLOW_QUERY_THRESHOLD_PROPERTY, 500));
+
+  private final String endpoint;
+  private final String tenantId;
+  private final long slowQueryThresholdNanoseconds;
+
+  private final List<String> statements = new ArrayList<>();
+
+  private String cql;
+  private long rows;
+
+  private long translationNanoseconds;
+  private long executionNanoseconds;
+
+  //When the most recent statement finished, or zero when none have
+  private long lastFinished;
+
+  /**
+   * @param endpoint name of the method handling the request
+   */
+  public RequestTiming(String endpoint, String tenantId) {
+    this(endpoint, tenantId, SLOW_QUERY_THRESHOLD_NANOSECONDS);
+  }
+
+  RequestTiming(String endpoint, String tenantId, long slowQueryThresholdNanoseconds) {
+    this.endpoint = endpoint;
+    this.tenantId = tenantId;
+    this.slowQueryThresholdNanoseconds = slowQueryThresholdNanoseconds;
+  }
+
+  /**
+   * @return a handler that records the request (see {@link Metrics#recorded})
+   * and the time spent in each phase when it responds, then passes the
+   * response to the handler given
+   */
+  public Handler<AsyncResult<Response>> recorded(
+    Handler<AsyncResult<Response>> handler) {
+
+    return Metrics.recorded(endpoint, tenantId, response -> {
+      finish();
+
+      handler.handle(response);
+    });
+  }
+
+  /**
+   * @return a client whose statements are timed as part of this request
+   */
+  public TimedPostgresClient client(PostgresClient postgresClient) {
+    return new TimedPostgresClient(postgresClient, this);
+  }
+
+  /**
+   * Translates the query, timing the translation and keeping the query
+   * for the slow query log
+   */
+  public <T> T translate(
+    String query,
+    Translation<T> translation) throws Exception {
+
+    cql = query;
+
+    long started = System.nanoTime();
+
+    try {
+      return translation.translate(query);
+    }
+    finally {
+      translationNanoseconds += System.nanoTime() - started;
+    }
+  }
+
+  void executed(String statement, long nanoseconds, int rowCount) {
+    statements.add(statement);
+    executionNanoseconds += nanoseconds;
+    rows += rowCount;
+    lastFinished = System.nanoTime();
+  }
+
+  void finish() {
+    if(cql == null && statements.isEmpty()) {
+      return;
+    }
+
+    long mappingNanoseconds = lastFinished == 0
+      ? 0
+      : System.nanoTime() - lastFinished;
+
+    Metrics.recordDatabase(endpoint, tenantId, "translation", translationNanoseconds);
+    Metrics.recordDatabase(endpoint, tenantId, "execution", executionNanoseconds);
+    Metrics.recordDatabase(endpoint, tenantId, "mapping", mappingNanoseconds);
+
+    long totalNanoseconds = translationNanoseconds + executionNanoseconds
+      + mappingNanoseconds;
+
+    if(totalNanoseconds >= slowQueryThresholdNanoseconds) {
+      log.warn("Slow query: " + slowQuery(mappingNanoseconds).encode());
+    }
+  }
+
+  JsonObject slowQuery(long mappingNanoseconds) {
+    JsonArray sql = new JsonArray();
+
+    statements.forEach(statement -> sql.add(redactSql(statement)));
+
+    return new JsonObject()
+      .put("endpoint", endpoint)
+      .put("tenant", tenantId)
+      .put("cql", cql == null ? null : redactCql(cql))
+      .put("sql", sql)
+      .put("rows", rows)
+      .put("translationMilliseconds", milliseconds(translationNanoseconds))
+      .put("executionMilliseconds", milliseconds(executionNanoseconds))
+      .put("mappingMilliseconds", milliseconds(mappingNanoseconds));
+  }
+
+  static String redactCql(String cql) {
+    return CQL_TERM.matcher(cql).replaceAll("$1$2?");
+  }
+
+  static String redactSql(String sql) {
+    return SQL_LITERAL.matcher(sql).replaceAll("?");
+  }
+
+  private static double milliseconds(long nanoseconds) {
+    return nanoseconds / 1e6;
+  }
+}
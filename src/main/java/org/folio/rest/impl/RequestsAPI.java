@@ -4,21 +4,25 @@ import io.vertx.core.AsyncResult;
 import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.folio.rest.annotations.Validate;
 import org.folio.rest.jaxrs.model.Request;
-import org.folio.rest.jaxrs.model.Requests;
 import org.folio.rest.jaxrs.resource.LoanPolicyStorageResource;
 import org.folio.rest.jaxrs.resource.RequestStorageResource;
-import org.folio.rest.persist.Criteria.Criteria;
-import org.folio.rest.persist.Criteria.Criterion;
 import org.folio.rest.persist.Criteria.Limit;
 import org.folio.rest.persist.Criteria.Offset;
 import org.folio.rest.persist.PostgresClient;
-import org.folio.rest.persist.cql.CQLWrapper;
-import org.folio.rest.tools.utils.OutStream;
 import org.folio.rest.tools.utils.TenantTool;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
 
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -27,21 +31,67 @@ import static org.folio.rest.impl.Headers.TENANT_HEADER;
 
 public class RequestsAPI implements RequestStorageResource {
 
-  private final String REQUEST_TABLE = "request";
+  private static final Logger log = LoggerFactory.getLogger(RequestsAPI.class);
+
+  private static final String REQUEST_TABLE = "request";
+
+  //Properties with B-tree expression indexes in template_create_tenant.sql
+  private static final IndexedCqlTranslator REQUEST_INDEXES =
+    new IndexedCqlTranslator("request")
+      .withIndexedProperty("itemId")
+      .withIndexedProperty("requestDate")
+      .withIndexedProperty("item.barcode")
+      .withIndexedProperty("requester.barcode");
+
+  //Properties that can be looked up without counting the records (or
+  //translating the query), as only a few requests have the same value
+  private static final List<String> BARCODE_PROPERTIES =
+    Arrays.asList("item.barcode", "requester.barcode");
+
+  //Largest number of expired requests removed by a single statement
+  private static final int EXPIRATION_BATCH_SIZE = 1000;
+
+  //Translations of queries into WHERE (and ORDER BY) clauses
+  private static final CqlTranslationCache REQUEST_FILTERS =
+    new CqlTranslationCache(1000, RequestsAPI::requestFilter);
+
+  static {
+    Metrics.registerCache("request_cql_translations",
+      REQUEST_FILTERS::getHits, REQUEST_FILTERS::getMisses);
+  }
+
+  /**
+   * @return the WHERE (and optional ORDER BY) clause used when searching
+   * for requests
+   */
+  public static String requestFilter(String query) throws Exception {
+    String indexedFilter = REQUEST_INDEXES.toSql(query);
+
+    return indexedFilter != null
+      ? indexedFilter
+      : "WHERE " + REQUEST_INDEXES.narrowed(query,
+          cql -> new CQL2PgJSON("request.jsonb").cql2pgJson(cql));
+  }
 
   @Override
   public void deleteRequestStorageRequests(
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "deleteRequestStorageRequests", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     vertxContext.runOnContext(v -> {
       try {
-        PostgresClient postgresClient = PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+        TimedPostgresClient postgresClient = timing.client(
+          PostgresClient.getInstance(vertxContext.owner(),
+            TenantTool.calculateTenantId(tenantId)));
 
         postgresClient.mutate(String.format("TRUNCATE TABLE %s_%s.%s",
           tenantId, "mod_circulation_storage", REQUEST_TABLE),
@@ -63,38 +113,74 @@ public class RequestsAPI implements RequestStorageResource {
     int offset,
     int limit,
     String query,
+    String cursor,
+    String totalRecords,
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getRequestStorageRequests", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
       vertxContext.runOnContext(v -> {
         try {
-          PostgresClient postgresClient = PostgresClient.getInstance(
-            vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+          TimedPostgresClient postgresClient = timing.client(
+            PostgresClient.getInstance(vertxContext.owner(),
+              TenantTool.calculateTenantId(tenantId)));
+
+          if(cursor != null) {
+            getRequestsAfterCursor(postgresClient, tenantId, query, cursor,
+              limit, asyncResultHandler);
+
+            return;
+          }
+
+          Map.Entry<String, String> barcode = timing.translate(query,
+            this::barcodeLookup);
 
-          String[] fieldList = {"*"};
+          if(barcode != null) {
+            getRequestsByBarcode(postgresClient, tenantId, barcode.getKey(),
+              barcode.getValue(), offset, limit, totalRecords,
+              asyncResultHandler);
+
+            return;
+          }
 
-          CQL2PgJSON cql2pgJson = new CQL2PgJSON(String.format("%s.jsonb", REQUEST_TABLE));
-          CQLWrapper cql = new CQLWrapper(cql2pgJson, query)
-            .setLimit(new Limit(limit))
-            .setOffset(new Offset(offset));
+          String filter = timing.translate(query, REQUEST_FILTERS::translate);
 
-          postgresClient.get(REQUEST_TABLE, Request.class, fieldList, cql,
-            true, false, reply -> {
+          StoredJson.page(postgresClient, tenantId, REQUEST_TABLE, filter,
+            offset, limit, TotalRecords.isExact(totalRecords), reply -> {
               try {
                 if(reply.succeeded()) {
-                  List<Request> requests = (List<Request>) reply.result()[0];
+                  List<String> requests = reply.result().getRecords();
+
+                  if(TotalRecords.isEstimated(totalRecords)) {
+                    TotalRecords.estimate(postgresClient, tenantId, REQUEST_TABLE,
+                      filter, estimate -> {
+                        if(estimate.succeeded()) {
+                          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                            StoredJson.ok(StoredJson.collection("requests",
+                              requests, estimate.result(), null))));
+                        }
+                        else {
+                          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                            GetRequestStorageRequestsResponse.
+                              withPlainInternalServerError(estimate.cause().getMessage())));
+                        }
+                      });
 
-                  Requests pagedRequests = new Requests();
-                  pagedRequests.setRequests(requests);
-                  pagedRequests.setTotalRecords((Integer)reply.result()[1]);
+                    return;
+                  }
 
                   asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
-                    GetRequestStorageRequestsResponse.withJsonOK(pagedRequests)));
+                    StoredJson.ok(StoredJson.collection("requests", requests,
+                      reply.result().getTotalRecords(), null))));
                 }
                 else {
                   asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
@@ -123,20 +209,201 @@ public class RequestsAPI implements RequestStorageResource {
     }
   }
 
+  /**
+   * @return the property and barcode when the query is only for an exact
+   * barcode (e.g. item.barcode==X), otherwise null, as item.barcode=X is a
+   * case insensitive word match
+   */
+  private Map.Entry<String, String> barcodeLookup(String query) {
+    //Avoids parsing queries that cannot be for an exact barcode
+    if(query == null || !query.contains("barcode") || !query.contains("==")) {
+      return null;
+    }
+
+    Map<String, String> terms = REQUEST_INDEXES.equalityTerms(query);
+
+    if(terms == null || terms.size() != 1) {
+      return null;
+    }
+
+    Map.Entry<String, String> term = terms.entrySet().iterator().next();
+
+    return BARCODE_PROPERTIES.contains(term.getKey()) ? term : null;
+  }
+
+  /**
+   * @return the WHERE clause that looks up requests in the index for a barcode
+   * property (e.g. item.barcode)
+   */
+  public static String barcodeFilter(String property, String barcode) {
+    return String.format("WHERE %s = %s", REQUEST_INDEXES.expression(property),
+      Sql.literal(barcode));
+  }
+
+  private void getRequestsByBarcode(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String property,
+    String barcode,
+    int offset,
+    int limit,
+    String totalRecords,
+    Handler<AsyncResult<Response>> asyncResultHandler) {
+
+    String from = String.format("%s_%s.%s %s",
+      tenantId, "mod_circulation_storage", REQUEST_TABLE,
+      barcodeFilter(property, barcode));
+
+    //Read straight from the barcode index, the few matching records are
+    //sorted by ID so that pages are stable
+    String sql = String.format(
+      "SELECT request.jsonb::text FROM %s ORDER BY request._id %s %s",
+      from, new Limit(limit), new Offset(offset));
+
+    postgresClient.select(sql, reply -> {
+      try {
+        if(reply.failed()) {
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            GetRequestStorageRequestsResponse.
+              withPlainInternalServerError(reply.cause().getMessage())));
+
+          return;
+        }
+
+        List<String> requests = new ArrayList<>();
+
+        for(JsonArray row : reply.result().getResults()) {
+          requests.add(row.getString(0));
+        }
+
+        //A page that is not full (and not past the end) has the last of the
+        //records, so they only need to be counted for a full page
+        boolean lastPage = requests.size() < limit
+          && (offset == 0 || !requests.isEmpty());
+
+        if(TotalRecords.NONE.equals(totalRecords)) {
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            StoredJson.ok(StoredJson.collection("requests", requests,
+              null, null))));
+        }
+        else if(lastPage) {
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            StoredJson.ok(StoredJson.collection("requests", requests,
+              offset + requests.size(), null))));
+        }
+        else {
+          postgresClient.select(String.format("SELECT count(*) FROM %s", from),
+            countReply -> {
+              if(countReply.failed()) {
+                asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                  GetRequestStorageRequestsResponse.
+                    withPlainInternalServerError(countReply.cause().getMessage())));
+
+                return;
+              }
+
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                StoredJson.ok(StoredJson.collection("requests", requests,
+                  countReply.result().getResults().get(0).getLong(0).intValue(),
+                  null))));
+            });
+        }
+      } catch (Exception e) {
+        log.error(e.getMessage(), e);
+        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+          GetRequestStorageRequestsResponse.
+            withPlainInternalServerError(e.getMessage())));
+      }
+    });
+  }
+
+  private void getRequestsAfterCursor(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String query,
+    String cursor,
+    int limit,
+    Handler<AsyncResult<Response>> asyncResultHandler) throws Exception {
+
+    KeysetCursor position;
+
+    try {
+      if(IndexedCqlTranslator.hasSort(query)) {
+        throw new IllegalArgumentException(
+          "Sorting cannot be combined with a cursor");
+      }
+
+      position = KeysetCursor.parse(cursor, 1);
+    }
+    catch(IllegalArgumentException e) {
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+        GetRequestStorageRequestsResponse.withPlainBadRequest(e.getMessage())));
+
+      return;
+    }
+
+    String condition = query == null ? "" : postgresClient.getTiming().translate(
+      query, new CQL2PgJSON(String.format("%s.jsonb", REQUEST_TABLE))::cql2pgJson);
+
+    //Each page seeks past the last ID on the previous page using the primary
+    //key index, an extra record is fetched to know if there is another page
+    String afterPrevious = position.isFirstPage() ? "" : String.format(
+      "%s._id > %s", REQUEST_TABLE, Sql.literal(
+        UUID.fromString(position.key(0)).toString()));
+
+    String filter = String.format("%s ORDER BY %s._id",
+      KeysetCursor.where(condition, afterPrevious), REQUEST_TABLE);
+
+    StoredJson.page(postgresClient, tenantId, REQUEST_TABLE, filter, 0,
+      limit + 1, false, reply -> {
+        try {
+          if(reply.succeeded()) {
+            List<String> requests = reply.result().getRecords();
+
+            String next = null;
+
+            if(requests.size() > limit) {
+              requests = requests.subList(0, limit);
+              next = KeysetCursor.next(reply.result().getIds().get(limit - 1));
+            }
+
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              StoredJson.ok(StoredJson.collection("requests", requests,
+                null, next))));
+          }
+          else {
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              GetRequestStorageRequestsResponse.
+                withPlainInternalServerError(reply.cause().getMessage())));
+          }
+        } catch (Exception e) {
+          log.error(e.getMessage(), e);
+          asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+            GetRequestStorageRequestsResponse.
+              withPlainInternalServerError(e.getMessage())));
+        }
+      });
+  }
+
   @Override
   public void postRequestStorageRequests(
     String lang,
     Request entity,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "postRequestStorageRequests", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
       vertxContext.runOnContext(v -> {
         try {
@@ -144,17 +411,15 @@ public class RequestsAPI implements RequestStorageResource {
             entity.setId(UUID.randomUUID().toString());
           }
 
-          postgresClient.save(REQUEST_TABLE, entity.getId(), entity,
-            reply -> {
+          String json = PostgresClient.pojo2json(entity);
+
+          Insert.insert(postgresClient, tenantId, REQUEST_TABLE,
+            entity.getId(), json, reply -> {
               try {
                 if(reply.succeeded()) {
-                  OutStream stream = new OutStream();
-                  stream.setData(entity);
-
                   asyncResultHandler.handle(
                     io.vertx.core.Future.succeededFuture(
-                      PostRequestStorageRequestsResponse
-                        .withJsonCreated(reply.result(), stream)));
+                      StoredJson.created(entity.getId(), json)));
                 }
                 else {
                   asyncResultHandler.handle(
@@ -190,38 +455,31 @@ public class RequestsAPI implements RequestStorageResource {
     String requestId,
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getRequestStorageRequestsByRequestId", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient = PostgresClient.getInstance(
-        vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
-
-      Criteria a = new Criteria();
-
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(requestId);
-
-      Criterion criterion = new Criterion(a);
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.get(REQUEST_TABLE, Request.class, criterion, true, false,
+          StoredJson.byId(postgresClient, tenantId, REQUEST_TABLE, requestId,
             reply -> {
               try {
                 if (reply.succeeded()) {
-                  List<Request> requests = (List<Request>) reply.result()[0];
-
-                  if (requests.size() == 1) {
-                    Request request = requests.get(0);
-
+                  if (reply.result() != null) {
                     asyncResultHandler.handle(
                       io.vertx.core.Future.succeededFuture(
-                        GetRequestStorageRequestsByRequestIdResponse.
-                          withJsonOK(request)));
+                        StoredJson.ok(reply.result())));
                   }
                   else {
                     asyncResultHandler.handle(
@@ -263,27 +521,26 @@ public class RequestsAPI implements RequestStorageResource {
     String requestId,
     String lang,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "deleteRequestStorageRequestsByRequestId", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
-
-      Criteria a = new Criteria();
-
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(requestId);
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
-      Criterion criterion = new Criterion(a);
+      String delete = PrimaryKey.delete(tenantId, REQUEST_TABLE, requestId);
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.delete(REQUEST_TABLE, criterion,
+          postgresClient.mutate(delete,
             reply -> {
               if(reply.succeeded()) {
                 asyncResultHandler.handle(
@@ -315,104 +572,58 @@ public class RequestsAPI implements RequestStorageResource {
     String requestId,
     String lang, Request entity,
     Map<String, String> okapiHeaders,
-    Handler<AsyncResult<Response>> asyncResultHandler,
+    Handler<AsyncResult<Response>> responseHandler,
     Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "putRequestStorageRequestsByRequestId", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
 
     String tenantId = okapiHeaders.get(TENANT_HEADER);
 
     try {
-      PostgresClient postgresClient =
-        PostgresClient.getInstance(
-          vertxContext.owner(), TenantTool.calculateTenantId(tenantId));
+      TimedPostgresClient postgresClient = timing.client(
+        PostgresClient.getInstance(vertxContext.owner(),
+          TenantTool.calculateTenantId(tenantId)));
 
-      Criteria a = new Criteria();
+      if(entity.getId() == null) {
+        entity.setId(requestId);
+      }
 
-      a.addField("'id'");
-      a.setOperation("=");
-      a.setValue(requestId);
+      //IDs are UUIDs, so are the same regardless of case
+      if(!requestId.equalsIgnoreCase(entity.getId())) {
+        asyncResultHandler.handle(
+          io.vertx.core.Future.succeededFuture(
+            PutRequestStorageRequestsByRequestIdResponse
+              .withPlainBadRequest("id in body does not match path")));
 
-      Criterion criterion = new Criterion(a);
+        return;
+      }
 
       vertxContext.runOnContext(v -> {
         try {
-          postgresClient.get(REQUEST_TABLE, Request.class, criterion, true, false,
+          Upsert.upsert(postgresClient, tenantId, REQUEST_TABLE, requestId, entity,
             reply -> {
-              if(reply.succeeded()) {
-                List<Request> requestList = (List<Request>) reply.result()[0];
-
-                if (requestList.size() == 1) {
-                  try {
-                    postgresClient.update(REQUEST_TABLE, entity, criterion,
-                      true,
-                      update -> {
-                        try {
-                          if(update.succeeded()) {
-                            OutStream stream = new OutStream();
-                            stream.setData(entity);
-
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutRequestStorageRequestsByRequestIdResponse
-                                  .withNoContent()));
-                          }
-                          else {
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutRequestStorageRequestsByRequestIdResponse
-                                  .withPlainInternalServerError(
-                                    update.cause().getMessage())));
-                          }
-                        } catch (Exception e) {
-                          asyncResultHandler.handle(
-                            Future.succeededFuture(
-                              PutRequestStorageRequestsByRequestIdResponse
-                                .withPlainInternalServerError(e.getMessage())));
-                        }
-                      });
-                  } catch (Exception e) {
-                    asyncResultHandler.handle(Future.succeededFuture(
+              try {
+                if(reply.succeeded()) {
+                  asyncResultHandler.handle(
+                    Future.succeededFuture(
                       PutRequestStorageRequestsByRequestIdResponse
-                        .withPlainInternalServerError(e.getMessage())));
-                  }
+                        .withNoContent()));
                 }
                 else {
-                  try {
-                    postgresClient.save(REQUEST_TABLE, entity.getId(), entity,
-                      save -> {
-                        try {
-                          if(save.succeeded()) {
-                            OutStream stream = new OutStream();
-                            stream.setData(entity);
-
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutRequestStorageRequestsByRequestIdResponse
-                                  .withNoContent()));
-                          }
-                          else {
-                            asyncResultHandler.handle(
-                              Future.succeededFuture(
-                                PutRequestStorageRequestsByRequestIdResponse
-                                  .withPlainInternalServerError(
-                                    save.cause().getMessage())));
-                          }
-                        } catch (Exception e) {
-                          asyncResultHandler.handle(
-                            Future.succeededFuture(
-                              PutRequestStorageRequestsByRequestIdResponse
-                                .withPlainInternalServerError(e.getMessage())));
-                        }
-                      });
-                  } catch (Exception e) {
-                    asyncResultHandler.handle(Future.succeededFuture(
+                  asyncResultHandler.handle(
+                    Future.succeededFuture(
                       PutRequestStorageRequestsByRequestIdResponse
-                        .withPlainInternalServerError(e.getMessage())));
-                  }
+                        .withPlainInternalServerError(
+                          reply.cause().getMessage())));
                 }
-              } else {
-                asyncResultHandler.handle(Future.succeededFuture(
-                  PutRequestStorageRequestsByRequestIdResponse
-                    .withPlainInternalServerError(reply.cause().getMessage())));
+              } catch (Exception e) {
+                asyncResultHandler.handle(
+                  Future.succeededFuture(
+                    PutRequestStorageRequestsByRequestIdResponse
+                      .withPlainInternalServerError(e.getMessage())));
               }
             });
         } catch (Exception e) {
@@ -427,4 +638,223 @@ public class RequestsAPI implements RequestStorageResource {
           .withPlainInternalServerError(e.getMessage())));
     }
   }
+
+  @Override
+  public void getRequestStorageRequestQueuesByItemId(
+    String itemId,
+    Map<String, String> okapiHeaders,
+    Handler<AsyncResult<Response>> responseHandler,
+    Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "getRequestStorageRequestQueuesByItemId", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
+
+    String tenantId = okapiHeaders.get(TENANT_HEADER);
+
+    //Matches the request_queue_idx index, so the queue is read in order by a
+    //range scan of the item's entries, rather than sorted after a table scan
+    String sql = String.format(
+      "SELECT request.jsonb::text FROM %s_%s.%s" +
+        " WHERE request.jsonb->>'itemId' = %s" +
+        " ORDER BY request.jsonb->>'requestDate', request._id",
+      tenantId, "mod_circulation_storage", REQUEST_TABLE,
+      Sql.literal(itemId));
+
+    vertxContext.runOnContext(v -> {
+      try {
+        TimedPostgresClient postgresClient = timing.client(
+          PostgresClient.getInstance(vertxContext.owner(),
+            TenantTool.calculateTenantId(tenantId)));
+
+        postgresClient.select(sql, reply -> {
+          try {
+            if(reply.failed()) {
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                GetRequestStorageRequestQueuesByItemIdResponse.
+                  withPlainInternalServerError(reply.cause().getMessage())));
+
+              return;
+            }
+
+            List<JsonArray> rows = reply.result().getResults();
+
+            //Each stored request is wrapped in an entry without decoding it
+            StringBuilder queue = new StringBuilder("{\"itemId\":")
+              .append(Json.encode(itemId)).append(",\"requests\":[");
+
+            for(int index = 0; index < rows.size(); index++) {
+              queue.append(index > 0 ? "," : "")
+                .append("{\"position\":").append(index + 1)
+                .append(",\"request\":").append(rows.get(index).getString(0))
+                .append("}");
+            }
+
+            queue.append("],\"totalRecords\":").append(rows.size()).append("}");
+
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              StoredJson.ok(queue.toString())));
+          } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+              GetRequestStorageRequestQueuesByItemIdResponse.
+                withPlainInternalServerError(e.getMessage())));
+          }
+        });
+      } catch (Exception e) {
+        log.error(e.getMessage(), e);
+        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+          GetRequestStorageRequestQueuesByItemIdResponse.
+            withPlainInternalServerError(e.getMessage())));
+      }
+    });
+  }
+
+  @Validate
+  @Override
+  public void deleteRequestStorageExpiredRequests(
+    String expiredBefore,
+    int limit,
+    Map<String, String> okapiHeaders,
+    Handler<AsyncResult<Response>> responseHandler,
+    Context vertxContext) throws Exception {
+    RequestTiming timing = new RequestTiming(
+      "deleteRequestStorageExpiredRequests", okapiHeaders.get(TENANT_HEADER));
+
+    Handler<AsyncResult<Response>> asyncResultHandler =
+      timing.recorded(responseHandler);
+
+    String tenantId = okapiHeaders.get(TENANT_HEADER);
+
+    LocalDate expiredBeforeDate;
+
+    try {
+      expiredBeforeDate = expiredBefore == null
+        ? LocalDate.now(DateTimeZone.UTC)
+        : LocalDate.parse(expiredBefore);
+    }
+    catch(IllegalArgumentException e) {
+      asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+        DeleteRequestStorageExpiredRequestsResponse.
+          withPlainBadRequest(e.getMessage())));
+
+      return;
+    }
+
+    String expired = expiredCondition(expiredBeforeDate);
+
+    vertxContext.runOnContext(v -> {
+      try {
+        TimedPostgresClient postgresClient = timing.client(
+          PostgresClient.getInstance(vertxContext.owner(),
+            TenantTool.calculateTenantId(tenantId)));
+
+        StringBuilder body = new StringBuilder("{\"requestIds\":[");
+
+        removeExpiredRequests(postgresClient, tenantId, expired, limit, body, 0,
+          reply -> {
+            if(reply.succeeded()) {
+              body.append("],\"totalRecords\":")
+                .append(reply.result()).append("}");
+
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                Response.status(200)
+                  .header("Content-Type", "application/json")
+                  .entity(body.toString())
+                  .build()));
+            }
+            else {
+              asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+                DeleteRequestStorageExpiredRequestsResponse.
+                  withPlainInternalServerError(reply.cause().getMessage())));
+            }
+          });
+      } catch (Exception e) {
+        log.error(e.getMessage(), e);
+        asyncResultHandler.handle(io.vertx.core.Future.succeededFuture(
+          DeleteRequestStorageExpiredRequestsResponse.
+            withPlainInternalServerError(e.getMessage())));
+      }
+    });
+  }
+
+  /**
+   * @return the condition for requests that expired before a date
+   */
+  public static String expiredCondition(LocalDate expiredBefore) {
+    String date = Sql.literal(expiredBefore.toString());
+
+    //Each side matches one of the expiration date indexes
+    return String.format(
+      "request.jsonb->>'requestExpirationDate' < %1$s" +
+        " OR request.jsonb->>'holdShelfExpirationDate' < %1$s", date);
+  }
+
+  /**
+   * @return the statement that removes a batch of expired requests, returning
+   * the ID of each one
+   */
+  public static String expiredRequestsDelete(
+    String tenantId,
+    String expired,
+    int batchSize) {
+
+    String table = String.format("%s_%s.%s",
+      tenantId, "mod_circulation_storage", REQUEST_TABLE);
+
+    return String.format(
+      "DELETE FROM %1$s WHERE _id IN (SELECT request._id FROM %1$s" +
+        " WHERE %2$s LIMIT %3$s FOR UPDATE SKIP LOCKED) RETURNING _id",
+      table, expired, batchSize);
+  }
+
+  /**
+   * Removes up to the limit of expired requests in batches, each in its own
+   * transaction, and appends the ID of each one to the body (so requests are
+   * never decoded)
+   *
+   * Requests being removed by another sweep are skipped rather than waited for
+   *
+   * @param handler is given the number of requests removed
+   */
+  private void removeExpiredRequests(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String expired,
+    int limit,
+    StringBuilder body,
+    int removedSoFar,
+    Handler<AsyncResult<Integer>> handler) {
+
+    int batchSize = Math.min(EXPIRATION_BATCH_SIZE, limit - removedSoFar);
+
+    String sql = expiredRequestsDelete(tenantId, expired, batchSize);
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(io.vertx.core.Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      List<JsonArray> rows = reply.result().getResults();
+
+      int removed = removedSoFar;
+
+      for(JsonArray row : rows) {
+        body.append(removed > 0 ? "," : "")
+          .append("\"").append(row.getString(0)).append("\"");
+
+        removed++;
+      }
+
+      if(rows.size() < batchSize || removed >= limit) {
+        handler.handle(io.vertx.core.Future.succeededFuture(removed));
+      }
+      else {
+        removeExpiredRequests(postgresClient, tenantId, expired, limit, body,
+          removed, handler);
+      }
+    });
+  }
 }
@@ -0,0 +1,21 @@
+package org.folio.rest.impl;
+
+/**
+ * Building blocks for SQL statements that are built as text
+ *
+ * The PostgresClient used here can only run statements with their values
+ * in the text, rather than as parameters.
+ */
+public class Sql {
+
+  private Sql() { }
+
+  /**
+   * @return the value as a string literal, e.g. o'neill as 'o''neill'
+   * (backslashes need no escaping, as standard_conforming_strings is on
+   * by default)
+   */
+  public static String literal(String value) {
+    return "'" + value.replace("'", "''") + "'";
+  }
+}
@@ -0,0 +1,216 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import org.folio.rest.persist.Criteria.Limit;
+import org.folio.rest.persist.Criteria.Offset;
+
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds responses from the JSON stored for records, without decoding it
+ *
+ * Decoding each record into a generated class, only for it to be encoded
+ * again for the response, was most of the work of a read. The stored JSON
+ * was encoded from the same classes when it was written, so it is copied
+ * into the response as it is.
+ */
+public class StoredJson {
+
+  public static class Page {
+    private final List<String> ids;
+    private final List<String> records;
+    private final Integer totalRecords;
+
+    private Page(List<String> ids, List<String> records, Integer totalRecords) {
+      this.ids = ids;
+      this.records = records;
+      this.totalRecords = totalRecords;
+    }
+
+    public List<String> getIds() {
+      return ids;
+    }
+
+    /**
+     * @return the stored JSON of each record, in order
+     */
+    public List<String> getRecords() {
+      return records;
+    }
+
+    /**
+     * @return the number of matching records, or null when not counted
+     */
+    public Integer getTotalRecords() {
+      return totalRecords;
+    }
+  }
+
+  private StoredJson() { }
+
+  /**
+   * Selects the stored JSON of a page of records
+   *
+   * @param filter WHERE (and optional ORDER BY) clause, which can refer to
+   * the table by name
+   * @param countAll when true, every matching record is counted
+   */
+  public static void page(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String table,
+    String filter,
+    int offset,
+    int limit,
+    boolean countAll,
+    Handler<AsyncResult<Page>> handler) {
+
+    String from = String.format("%s_%s.%s %s",
+      tenantId, "mod_circulation_storage", table, filter);
+
+    //Counted in the same statement, so that it matches the page
+    String sql = String.format("SELECT %1$s._id, %1$s.jsonb::text%2$s FROM %3$s %4$s %5$s",
+      table, countAll ? ", count(*) OVER ()" : "", from,
+      new Limit(limit), new Offset(offset));
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      List<JsonArray> rows = reply.result().getResults();
+
+      List<String> ids = new ArrayList<>(rows.size());
+      List<String> records = new ArrayList<>(rows.size());
+
+      for(JsonArray row : rows) {
+        ids.add(row.getString(0));
+        records.add(row.getString(1));
+      }
+
+      if(!countAll) {
+        handler.handle(Future.succeededFuture(new Page(ids, records, null)));
+      }
+      else if(!rows.isEmpty() || offset == 0) {
+        handler.handle(Future.succeededFuture(new Page(ids, records,
+          rows.isEmpty() ? 0 : rows.get(0).getLong(2).intValue())));
+      }
+      else {
+        //A page past the end has no rows to carry the count
+        count(postgresClient, from, counted -> {
+          if(counted.failed()) {
+            handler.handle(Future.failedFuture(counted.cause()));
+            return;
+          }
+
+          handler.handle(Future.succeededFuture(new Page(ids, records,
+            counted.result())));
+        });
+      }
+    });
+  }
+
+  /**
+   * Counts the matching records, for a page past the end which has no rows
+   * to carry a count made in the same statement
+   *
+   * @param from table (qualified by the schema) followed by the WHERE (and
+   * optional ORDER BY) clause
+   */
+  public static void count(
+    TimedPostgresClient postgresClient,
+    String from,
+    Handler<AsyncResult<Integer>> handler) {
+
+    postgresClient.select(String.format(
+      "SELECT count(*) FROM (SELECT 1 FROM %s) AS matching", from),
+      reply -> {
+        if(reply.failed()) {
+          handler.handle(Future.failedFuture(reply.cause()));
+          return;
+        }
+
+        handler.handle(Future.succeededFuture(
+          reply.result().getResults().get(0).getLong(0).intValue()));
+      });
+  }
+
+  /**
+   * Selects the stored JSON of a record using the primary key
+   *
+   * @param handler is given the stored JSON, or null when there is no record
+   */
+  public static void byId(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String table,
+    String id,
+    Handler<AsyncResult<String>> handler) {
+
+    String sql = String.format("SELECT %1$s.jsonb::text FROM %2$s_%3$s.%1$s %4$s",
+      table, tenantId, "mod_circulation_storage", PrimaryKey.filter(table, id));
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      List<JsonArray> rows = reply.result().getResults();
+
+      handler.handle(Future.succeededFuture(
+        rows.isEmpty() ? null : rows.get(0).getString(0)));
+    });
+  }
+
+  /**
+   * @param property name of the array of records, e.g. loans
+   * @param totalRecords left out when null
+   * @param next cursor for the next page, left out when null
+   */
+  public static String collection(
+    String property,
+    List<String> records,
+    Integer totalRecords,
+    String next) {
+
+    StringBuilder body = new StringBuilder("{\"").append(property)
+      .append("\":[").append(String.join(",", records)).append("]");
+
+    if(totalRecords != null) {
+      body.append(",\"totalRecords\":").append(totalRecords);
+    }
+
+    if(next != null) {
+      body.append(",\"next\":").append(Json.encode(next));
+    }
+
+    return body.append("}").toString();
+  }
+
+  /**
+   * @param location of the created record, which is its ID (as for records
+   * saved using PostgresClient)
+   */
+  public static Response created(String location, String json) {
+    return Response.status(201)
+      .header("Location", location)
+      .header("Content-Type", "application/json")
+      .entity(json)
+      .build();
+  }
+
+  public static Response ok(String json) {
+    return Response.status(200)
+      .header("Content-Type", "application/json")
+      .entity(json)
+      .build();
+  }
+}
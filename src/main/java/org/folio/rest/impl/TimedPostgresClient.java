@@ -0,0 +1,75 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.ext.sql.ResultSet;
+import org.folio.rest.persist.PostgresClient;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Executes statements for a request, timing them (see {@link RequestTiming})
+ *
+ * Each statement is timed from calling PostgresClient until it replies.
+ * PostgresClient gets a connection from the pool and executes the statement
+ * on it in a single call, so waiting for a connection is counted as part of
+ * executing the statement.
+ */
+public class TimedPostgresClient {
+
+  private final PostgresClient postgresClient;
+  private final RequestTiming timing;
+
+  TimedPostgresClient(PostgresClient postgresClient, RequestTiming timing) {
+    this.postgresClient = postgresClient;
+    this.timing = timing;
+  }
+
+  public RequestTiming getTiming() {
+    return timing;
+  }
+
+  /**
+   * @return the client without timing, for work that is not only for this
+   * request, or methods that are not wrapped here (see {@link #timed})
+   */
+  public PostgresClient untimed() {
+    return postgresClient;
+  }
+
+  public void select(String sql, Handler<AsyncResult<ResultSet>> handler) {
+    postgresClient.select(sql, timed(sql, ResultSet::getNumRows, handler));
+  }
+
+  public void mutate(String sql, Handler<AsyncResult<String>> handler) {
+    postgresClient.mutate(sql, timed(sql, reply -> 0, handler));
+  }
+
+  /**
+   * Times a PostgresClient method which is not wrapped here (e.g. get
+   * or update), from now until it replies
+   *
+   * @param description of the statement, for the slow query log
+   */
+  public <T> Handler<AsyncResult<T>> timed(
+    String description,
+    Handler<AsyncResult<T>> handler) {
+
+    return timed(description, reply -> 0, handler);
+  }
+
+  private <T> Handler<AsyncResult<T>> timed(
+    String statement,
+    ToIntFunction<T> rowCount,
+    Handler<AsyncResult<T>> handler) {
+
+    long started = System.nanoTime();
+
+    return reply -> {
+      timing.executed(statement, System.nanoTime() - started,
+        reply.succeeded() ? rowCount.applyAsInt(reply.result()) : 0);
+
+      handler.handle(reply);
+    };
+  }
+}
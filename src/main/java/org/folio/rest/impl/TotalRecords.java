@@ -0,0 +1,96 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+
+/**
+ * How totalRecords is calculated for a collection
+ *
+ * exact - counts every matching record (the default)
+ * estimated - counts exactly up to {@value #EXACT_COUNT_LIMIT} records,
+ * beyond that uses the query planner's estimate
+ * none - totalRecords is not included
+ */
+public class TotalRecords {
+
+  public static final String EXACT = "exact";
+  public static final String ESTIMATED = "estimated";
+  public static final String NONE = "none";
+
+  static final int EXACT_COUNT_LIMIT = 1000;
+
+  private TotalRecords() { }
+
+  public static boolean isExact(String mode) {
+    return mode == null || EXACT.equals(mode);
+  }
+
+  public static boolean isEstimated(String mode) {
+    return ESTIMATED.equals(mode);
+  }
+
+  /**
+   * Estimates the number of records in the table matching a filter
+   *
+   * @param filter WHERE (and optional ORDER BY) clause, without limit or offset
+   */
+  public static void estimate(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String table,
+    String filter,
+    Handler<AsyncResult<Integer>> handler) {
+
+    String from = String.format("%s_%s.%s %s",
+      tenantId, "mod_circulation_storage", table, filter);
+
+    //Stops counting after the limit, so is never more expensive than
+    //reading that many records
+    String boundedCount = String.format(
+      "SELECT count(*) FROM (SELECT 1 FROM %s LIMIT %s) AS bounded",
+      from, EXACT_COUNT_LIMIT + 1);
+
+    postgresClient.select(boundedCount, countReply -> {
+      try {
+        if(countReply.failed()) {
+          handler.handle(Future.failedFuture(countReply.cause()));
+          return;
+        }
+
+        int count = countReply.result().getResults().get(0).getInteger(0);
+
+        if(count <= EXACT_COUNT_LIMIT) {
+          handler.handle(Future.succeededFuture(count));
+          return;
+        }
+
+        postgresClient.select("EXPLAIN (FORMAT JSON) SELECT 1 FROM " + from,
+          explainReply -> {
+            try {
+              if(explainReply.failed()) {
+                handler.handle(Future.failedFuture(explainReply.cause()));
+                return;
+              }
+
+              JsonArray plan = new JsonArray(String.valueOf(
+                explainReply.result().getResults().get(0).getValue(0)));
+
+              long estimate = plan.getJsonObject(0).getJsonObject("Plan")
+                .getLong("Plan Rows");
+
+              handler.handle(Future.succeededFuture(
+                (int) Math.min(Integer.MAX_VALUE, Math.max(estimate, count))));
+            }
+            catch(Exception e) {
+              handler.handle(Future.failedFuture(e));
+            }
+          });
+      }
+      catch(Exception e) {
+        handler.handle(Future.failedFuture(e));
+      }
+    });
+  }
+}
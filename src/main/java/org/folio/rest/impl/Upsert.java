@@ -0,0 +1,58 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import org.folio.rest.persist.PostgresClient;
+
+/**
+ * Creates or replaces a record using a single statement
+ *
+ * Reading the record first to decide between an update and a save takes two
+ * round trips, and another request can create the record in between.
+ * INSERT ... ON CONFLICT on the primary key does both atomically.
+ */
+public class Upsert {
+
+  private Upsert() { }
+
+  /**
+   * @param handler is given true when the record was created and false when
+   * an existing record was replaced
+   */
+  public static void upsert(
+    TimedPostgresClient postgresClient,
+    String tenantId,
+    String table,
+    String id,
+    Object entity,
+    Handler<AsyncResult<Boolean>> handler) {
+
+    String sql;
+
+    try {
+      //xmax is only zero for a row that was inserted rather than updated
+      sql = String.format(
+        "INSERT INTO %s_%s.%s (_id, jsonb) VALUES (%s::uuid, %s::jsonb)" +
+          " ON CONFLICT (_id) DO UPDATE SET jsonb = EXCLUDED.jsonb" +
+          " RETURNING (xmax = 0) AS created",
+        tenantId, "mod_circulation_storage", table,
+        Sql.literal(id),
+        Sql.literal(PostgresClient.pojo2json(entity)));
+    }
+    catch(Exception e) {
+      handler.handle(Future.failedFuture(e));
+      return;
+    }
+
+    postgresClient.select(sql, reply -> {
+      if(reply.failed()) {
+        handler.handle(Future.failedFuture(reply.cause()));
+        return;
+      }
+
+      handler.handle(Future.succeededFuture(
+        reply.result().getResults().get(0).getBoolean(0)));
+    });
+  }
+}
@@ -39,3 +39,254 @@ DROP TRIGGER IF EXISTS loan_history_trigger ON loan CASCADE;
 CREATE TRIGGER loan_history_trigger AFTER INSERT OR UPDATE OR DELETE ON loan FOR EACH ROW EXECUTE PROCEDURE loan_history_func();
 
 GRANT ALL PRIVILEGES ON loan_history_table TO myuniversity_mymodule;
+
+-- history is partitioned by month of creation (using inheritance), each
+-- partition has a constraint on the created date so that queries bounded
+-- by created date only scan the partitions they need
+CREATE OR REPLACE FUNCTION loan_history_partition_name(month timestamp) RETURNS text AS $loan_history_partition_name$
+    BEGIN
+        RETURN 'loan_history_table_' || to_char(month, '"y"YYYY"m"MM');
+    END;
+$loan_history_partition_name$ LANGUAGE plpgsql STABLE;
+
+-- indexes for reading history newest first, either for a loan (using
+-- orig_id), for a user or for an item (the expressions must match those
+-- generated by IndexedCqlTranslator)
+CREATE OR REPLACE FUNCTION index_loan_history_partition(partitionName text) RETURNS void AS $index_loan_history_partition$
+    BEGIN
+        EXECUTE format('CREATE INDEX IF NOT EXISTS %I ON myuniversity_mymodule.%I (created_date DESC, _id DESC)',
+          partitionName || '_created_date_idx', partitionName);
+        EXECUTE format('CREATE INDEX IF NOT EXISTS %I ON myuniversity_mymodule.%I (orig_id, created_date DESC, _id DESC)',
+          partitionName || '_orig_id_idx', partitionName);
+        EXECUTE format('CREATE INDEX IF NOT EXISTS %I ON myuniversity_mymodule.%I ((jsonb->>''userId''), created_date DESC, _id DESC)',
+          partitionName || '_userid_idx', partitionName);
+        EXECUTE format('CREATE INDEX IF NOT EXISTS %I ON myuniversity_mymodule.%I ((jsonb->>''itemId''), created_date DESC, _id DESC)',
+          partitionName || '_itemid_idx', partitionName);
+    END;
+$index_loan_history_partition$ LANGUAGE plpgsql;
+
+-- creates the partition for the month including the given date, if needed
+CREATE OR REPLACE FUNCTION create_loan_history_partition(month timestamp) RETURNS text AS $create_loan_history_partition$
+		DECLARE
+		  partitionStart timestamp = date_trunc('month', month);
+		  partitionEnd timestamp = date_trunc('month', month) + interval '1 month';
+		  partitionName text = myuniversity_mymodule.loan_history_partition_name(month);
+    BEGIN
+        -- serialises creation of the same partition by concurrent transactions
+        PERFORM pg_advisory_xact_lock(hashtext('myuniversity_mymodule.' || partitionName));
+
+        IF to_regclass('myuniversity_mymodule.' || partitionName) IS NULL THEN
+            EXECUTE format('CREATE TABLE myuniversity_mymodule.%I (PRIMARY KEY (_id), CHECK (created_date >= %L AND created_date < %L)) INHERITS (myuniversity_mymodule.loan_history_table)',
+              partitionName, partitionStart, partitionEnd);
+            PERFORM myuniversity_mymodule.index_loan_history_partition(partitionName);
+            EXECUTE format('GRANT ALL PRIVILEGES ON myuniversity_mymodule.%I TO myuniversity_mymodule',
+              partitionName);
+        END IF;
+
+        RETURN partitionName;
+    END;
+$create_loan_history_partition$ LANGUAGE plpgsql;
+
+-- routes history into the partition for the month it was created
+CREATE OR REPLACE FUNCTION loan_history_partition_func() RETURNS TRIGGER AS $loan_history_partition$
+		DECLARE
+		  partitionName text = myuniversity_mymodule.loan_history_partition_name(NEW.created_date);
+    BEGIN
+        IF to_regclass('myuniversity_mymodule.' || partitionName) IS NULL THEN
+            PERFORM myuniversity_mymodule.create_loan_history_partition(NEW.created_date);
+        END IF;
+
+        EXECUTE format('INSERT INTO myuniversity_mymodule.%I SELECT ($1).*', partitionName) USING NEW;
+        RETURN NULL;
+    END;
+$loan_history_partition$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS loan_history_partition_trigger ON loan_history_table CASCADE;
+
+CREATE TRIGGER loan_history_partition_trigger BEFORE INSERT ON loan_history_table FOR EACH ROW EXECUTE PROCEDURE loan_history_partition_func();
+
+-- moves any history written before partitioning into partitions
+WITH unpartitioned AS (DELETE FROM ONLY loan_history_table RETURNING *)
+  INSERT INTO loan_history_table SELECT * FROM unpartitioned;
+
+-- how long history is kept for, without a row history is kept forever
+-- e.g. INSERT INTO myuniversity_mymodule.loan_history_retention (keep, drop_partitions) VALUES ('2 years', false);
+-- partitions past retention are dropped when drop_partitions is true,
+-- otherwise they are detached from the history table (and can be archived)
+CREATE TABLE IF NOT EXISTS loan_history_retention (
+   only_row boolean PRIMARY KEY DEFAULT true CHECK (only_row),
+   keep interval NOT NULL,
+   drop_partitions boolean NOT NULL DEFAULT false
+   );
+
+-- creates the partitions for this month and next month, and removes those
+-- past retention, returning the names of the removed partitions
+-- run periodically by the module (see LoanHistoryPartitions)
+-- functions run as their owner have a fixed search path, so that objects
+-- created in other schemas by the caller cannot be used in their place
+CREATE OR REPLACE FUNCTION maintain_loan_history_partitions() RETURNS SETOF text AS $maintain_loan_history_partitions$
+		DECLARE
+		  retention record;
+		  partition record;
+    BEGIN
+        PERFORM myuniversity_mymodule.create_loan_history_partition(current_timestamp::timestamp);
+        PERFORM myuniversity_mymodule.create_loan_history_partition(current_timestamp::timestamp + interval '1 month');
+
+        SELECT keep, drop_partitions INTO retention FROM myuniversity_mymodule.loan_history_retention;
+
+        IF NOT FOUND THEN
+            RETURN;
+        END IF;
+
+        FOR partition IN SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+            WHERE i.inhparent = 'myuniversity_mymodule.loan_history_table'::regclass
+            AND c.relname ~ '^loan_history_table_y[0-9]{4}m[0-9]{2}$'
+        LOOP
+            -- only partitions entirely older than the retention period
+            IF to_timestamp(right(partition.relname, 8), '"y"YYYY"m"MM')::timestamp + interval '1 month'
+                <= current_timestamp::timestamp - retention.keep THEN
+                IF retention.drop_partitions THEN
+                    EXECUTE format('DROP TABLE myuniversity_mymodule.%I', partition.relname);
+                ELSE
+                    EXECUTE format('ALTER TABLE myuniversity_mymodule.%I NO INHERIT myuniversity_mymodule.loan_history_table', partition.relname);
+                END IF;
+
+                RETURN NEXT partition.relname;
+            END IF;
+        END LOOP;
+    END;
+$maintain_loan_history_partitions$ LANGUAGE plpgsql SECURITY DEFINER
+    SET search_path = pg_catalog, myuniversity_mymodule;
+
+SELECT maintain_loan_history_partitions();
+
+-- adds any indexes missing from existing partitions
+SELECT index_loan_history_partition(c.relname) FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+  WHERE i.inhparent = 'loan_history_table'::regclass;
+
+GRANT ALL PRIVILEGES ON loan_history_retention TO myuniversity_mymodule;
+
+-- alternatively, history can be queued by the trigger and moved into the
+-- history table in batches by the module (see LoanHistoryQueue), the queue
+-- has no indexes other than its primary key so is cheaper to write to
+-- within the transaction changing the loan
+CREATE TABLE IF NOT EXISTS loan_history_queue (
+   seq BIGSERIAL PRIMARY KEY,
+   orig_id UUID NOT NULL,
+   operation char(1) NOT NULL,
+   jsonb jsonb,
+   created_date timestamp not null
+   );
+
+CREATE OR REPLACE FUNCTION loan_history_queue_func() RETURNS TRIGGER AS $loan_history_queue$
+		DECLARE
+		  injectedAction text;
+    BEGIN
+        IF (TG_OP = 'DELETE') THEN
+            injectedAction = '"deleted"';
+            OLD.jsonb = jsonb_set(OLD.jsonb, '{action}' , injectedAction::jsonb , false);
+            INSERT INTO myuniversity_mymodule.loan_history_queue (orig_id, operation, jsonb, created_date) VALUES (OLD._id, 'D', OLD.jsonb, current_timestamp);
+            RETURN OLD;
+        ELSIF (TG_OP = 'UPDATE') THEN
+            INSERT INTO myuniversity_mymodule.loan_history_queue (orig_id, operation, jsonb, created_date) VALUES (NEW._id, 'U', NEW.jsonb, current_timestamp);
+            RETURN NEW;
+        ELSIF (TG_OP = 'INSERT') THEN
+            INSERT INTO myuniversity_mymodule.loan_history_queue (orig_id, operation, jsonb, created_date) VALUES (NEW._id, 'I', NEW.jsonb, current_timestamp);
+            RETURN NEW;
+        END IF;
+        RETURN NULL;
+    END;
+$loan_history_queue$ LANGUAGE plpgsql;
+
+-- alternatively, history can be compacted, only storing the top level
+-- properties that changed from the previous version of the loan (and those
+-- that were removed), together with the identifying properties below so that
+-- history can still be found by loan, user, item, action or status. Every
+-- tenth version of a loan, and the first version each month (so that
+-- removing partitions past retention does not break the chain), is stored
+-- in full. Documents are rebuilt when history is read (see LoanHistoryDeltas)
+ALTER TABLE loan_history_table ADD COLUMN IF NOT EXISTS snapshot boolean NOT NULL DEFAULT true;
+ALTER TABLE loan_history_table ADD COLUMN IF NOT EXISTS removed_keys text[];
+
+CREATE OR REPLACE FUNCTION loan_history_delta(previous jsonb, current jsonb) RETURNS jsonb AS $loan_history_delta$
+    BEGIN
+        RETURN (SELECT coalesce(jsonb_object_agg(changed.key, changed.value), '{}'::jsonb)
+            FROM jsonb_each(current) AS changed
+            WHERE previous->changed.key IS DISTINCT FROM changed.value
+            OR changed.key IN ('id', 'userId', 'itemId', 'action', 'status'));
+    END;
+$loan_history_delta$ LANGUAGE plpgsql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION loan_history_compact_func() RETURNS TRIGGER AS $loan_history_compact$
+		DECLARE
+		  injectedAction text;
+		  loanId uuid;
+		  previousVersion jsonb;
+		  currentVersion jsonb;
+		  needsSnapshot boolean;
+    BEGIN
+        IF (TG_OP = 'INSERT') THEN
+            INSERT INTO myuniversity_mymodule.loan_history_table (_id, orig_id, operation, jsonb, created_date, snapshot)
+              VALUES (public.gen_random_uuid(), NEW._id, 'I', NEW.jsonb, clock_timestamp(), true);
+            RETURN NEW;
+        ELSIF (TG_OP = 'DELETE') THEN
+            injectedAction = '"deleted"';
+            loanId = OLD._id;
+            previousVersion = OLD.jsonb;
+            currentVersion = jsonb_set(OLD.jsonb, '{action}' , injectedAction::jsonb , false);
+        ELSE
+            loanId = NEW._id;
+            previousVersion = OLD.jsonb;
+            currentVersion = NEW.jsonb;
+        END IF;
+
+        -- reads at most 9 entries from the (orig_id, created_date) index
+        SELECT NOT coalesce(bool_or(recent.snapshot AND recent.created_date >= date_trunc('month', clock_timestamp()::timestamp)), false)
+          INTO needsSnapshot
+          FROM (SELECT snapshot, created_date FROM myuniversity_mymodule.loan_history_table
+            WHERE orig_id = loanId ORDER BY created_date DESC, _id DESC LIMIT 9) AS recent;
+
+        -- the clock (rather than transaction) time orders versions of a loan
+        -- by when they were written, as each version is a change to the last
+        IF needsSnapshot THEN
+            INSERT INTO myuniversity_mymodule.loan_history_table (_id, orig_id, operation, jsonb, created_date, snapshot)
+              VALUES (public.gen_random_uuid(), loanId, left(TG_OP, 1), currentVersion, clock_timestamp(), true);
+        ELSE
+            INSERT INTO myuniversity_mymodule.loan_history_table (_id, orig_id, operation, jsonb, created_date, snapshot, removed_keys)
+              VALUES (public.gen_random_uuid(), loanId, left(TG_OP, 1),
+                myuniversity_mymodule.loan_history_delta(previousVersion, currentVersion),
+                clock_timestamp(), false,
+                ARRAY(SELECT key FROM jsonb_object_keys(previousVersion) AS key WHERE NOT currentVersion ? key));
+        END IF;
+
+        IF (TG_OP = 'DELETE') THEN
+            RETURN OLD;
+        END IF;
+        RETURN NEW;
+    END;
+$loan_history_compact$ LANGUAGE plpgsql;
+
+-- switches how history is written, either 'direct' (the default), 'queued'
+-- or 'compact'
+-- e.g. SELECT myuniversity_mymodule.set_loan_history_mode('queued');
+CREATE OR REPLACE FUNCTION set_loan_history_mode(mode text) RETURNS void AS $set_loan_history_mode$
+    BEGIN
+        IF mode NOT IN ('direct', 'queued', 'compact') THEN
+            RAISE EXCEPTION 'Unknown loan history mode: %', mode;
+        END IF;
+
+        DROP TRIGGER IF EXISTS loan_history_trigger ON myuniversity_mymodule.loan CASCADE;
+
+        IF mode = 'queued' THEN
+            CREATE TRIGGER loan_history_trigger AFTER INSERT OR UPDATE OR DELETE ON myuniversity_mymodule.loan FOR EACH ROW EXECUTE PROCEDURE myuniversity_mymodule.loan_history_queue_func();
+        ELSIF mode = 'compact' THEN
+            CREATE TRIGGER loan_history_trigger AFTER INSERT OR UPDATE OR DELETE ON myuniversity_mymodule.loan FOR EACH ROW EXECUTE PROCEDURE myuniversity_mymodule.loan_history_compact_func();
+        ELSE
+            CREATE TRIGGER loan_history_trigger AFTER INSERT OR UPDATE OR DELETE ON myuniversity_mymodule.loan FOR EACH ROW EXECUTE PROCEDURE myuniversity_mymodule.loan_history_func();
+        END IF;
+    END;
+$set_loan_history_mode$ LANGUAGE plpgsql SECURITY DEFINER
+    SET search_path = pg_catalog, myuniversity_mymodule;
+
+GRANT ALL PRIVILEGES ON loan_history_queue TO myuniversity_mymodule;
+GRANT ALL PRIVILEGES ON SEQUENCE loan_history_queue_seq_seq TO myuniversity_mymodule;
@@ -1,4 +1,5 @@
 CREATE EXTENSION IF NOT EXISTS pgcrypto WITH SCHEMA public;
+CREATE EXTENSION IF NOT EXISTS pg_trgm WITH SCHEMA public;
 
 CREATE ROLE myuniversity_mymodule PASSWORD 'myuniversity' NOSUPERUSER NOCREATEDB INHERIT LOGIN;
 
@@ -10,7 +11,12 @@ CREATE TABLE myuniversity_mymodule.loan (
   _id UUID PRIMARY KEY,
   jsonb JSONB NOT NULL,
   creation_date timestamp WITH TIME ZONE,
-  created_by text
+  created_by text,
+  user_id UUID,
+  item_id UUID,
+  status_name text,
+  due_date timestamp WITH TIME ZONE,
+  loan_date timestamp WITH TIME ZONE
 );
 
 CREATE TABLE myuniversity_mymodule.loan_policy (
@@ -18,9 +24,15 @@ CREATE TABLE myuniversity_mymodule.loan_policy (
   jsonb JSONB NOT NULL
 );
 
+-- every change to the loan rules gives them a new version (see
+-- set_loan_rules_version below), so that each instance of the module can
+-- check whether its cached copy is current without reading the rules
+CREATE SEQUENCE myuniversity_mymodule.loan_rules_version_seq;
+
 CREATE TABLE myuniversity_mymodule.loan_rules (
   _id UUID PRIMARY KEY,
-  jsonb JSONB NOT NULL
+  jsonb JSONB NOT NULL,
+  version bigint NOT NULL DEFAULT nextval('myuniversity_mymodule.loan_rules_version_seq')
 );
 
 CREATE TABLE myuniversity_mymodule.request (
@@ -30,10 +42,109 @@ CREATE TABLE myuniversity_mymodule.request (
   created_by text
 );
 
+-- the ID in the JSON must match the primary key, so that a record can be
+-- found by ID using the primary key (see PrimaryKey)
+ALTER TABLE myuniversity_mymodule.loan ADD CONSTRAINT loan_id_matches_primary_key CHECK (lower(jsonb->>'id') IS NOT DISTINCT FROM _id::text);
+ALTER TABLE myuniversity_mymodule.loan_policy ADD CONSTRAINT loan_policy_id_matches_primary_key CHECK (lower(jsonb->>'id') IS NOT DISTINCT FROM _id::text);
+ALTER TABLE myuniversity_mymodule.request ADD CONSTRAINT request_id_matches_primary_key CHECK (lower(jsonb->>'id') IS NOT DISTINCT FROM _id::text);
+
+-- indexes for the loan properties most commonly used in CQL queries, which
+-- are copied into typed columns (see set_loan_columns_trigger below)
+-- the columns must match those used by IndexedCqlTranslator
+CREATE INDEX loan_user_id_idx ON myuniversity_mymodule.loan (user_id);
+CREATE INDEX loan_item_id_idx ON myuniversity_mymodule.loan (item_id);
+CREATE INDEX loan_status_name_idx ON myuniversity_mymodule.loan (status_name);
+CREATE INDEX loan_due_date_idx ON myuniversity_mymodule.loan (due_date);
+CREATE INDEX loan_loan_date_idx ON myuniversity_mymodule.loan (loan_date);
+-- open loans by due date, for finding overdue loans (and paging through them)
+CREATE INDEX loan_overdue_idx ON myuniversity_mymodule.loan (due_date, _id) WHERE status_name = 'Open';
+CREATE INDEX loan_jsonb_idx ON myuniversity_mymodule.loan USING GIN (jsonb jsonb_path_ops);
+
+-- the queue of requests for an item, in the order they were made
+-- request date is normalised to UTC when stored, so sorts as text
+CREATE INDEX request_queue_idx ON myuniversity_mymodule.request ((jsonb->>'itemId'), (jsonb->>'requestDate'), _id);
+
+-- indexes for looking up requests by the barcode of the item or requester
+-- (e.g. when scanned at a desk), which use the same expressions as
+-- IndexedCqlTranslator
+CREATE INDEX request_item_barcode_idx ON myuniversity_mymodule.request ((jsonb->'item'->>'barcode'));
+CREATE INDEX request_requester_barcode_idx ON myuniversity_mymodule.request ((jsonb->'requester'->>'barcode'));
+
+-- indexes for finding expired requests, the dates are stored as yyyy-MM-dd
+-- so sort as text
+CREATE INDEX request_request_expiration_date_idx ON myuniversity_mymodule.request ((jsonb->>'requestExpirationDate'));
+CREATE INDEX request_hold_shelf_expiration_date_idx ON myuniversity_mymodule.request ((jsonb->>'holdShelfExpirationDate'));
+
+-- trigram indexes for searching the snapshots of item and requester
+-- properties stored with a request, which can be used for the (case
+-- insensitive) regular expressions CQL2PgJSON generates for word and
+-- truncated terms, e.g. item.title=harry*
+-- the expressions must match those generated by CQL2PgJSON
+CREATE INDEX request_item_title_idx ON myuniversity_mymodule.request USING GIN ((jsonb->'item'->>'title') public.gin_trgm_ops);
+CREATE INDEX request_requester_last_name_idx ON myuniversity_mymodule.request USING GIN ((jsonb->'requester'->>'lastName') public.gin_trgm_ops);
+CREATE INDEX request_requester_first_name_idx ON myuniversity_mymodule.request USING GIN ((jsonb->'requester'->>'firstName') public.gin_trgm_ops);
+CREATE INDEX request_requester_middle_name_idx ON myuniversity_mymodule.request USING GIN ((jsonb->'requester'->>'middleName') public.gin_trgm_ops);
+
+-- an item can only have one open loan, this also answers the lookup
+-- for the open loan for an item (itemId=X and status.name=Open)
+CREATE UNIQUE INDEX loan_itemid_open_idx ON myuniversity_mymodule.loan ((jsonb->>'itemId')) WHERE jsonb->'status'->>'name' = 'Open';
+
 INSERT INTO myuniversity_mymodule.loan_rules
   SELECT id, jsonb_build_object('id', id, 'loanRulesAsTextFile', '')
   FROM (SELECT gen_random_uuid() AS id) AS alias;
 
+-- copies the most commonly queried loan properties into typed columns
+-- values that are not valid UUIDs or date times are left out (as the schema
+-- does not require them to be) and are only found using the JSON
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.uuid_or_null(value text)
+RETURNS uuid AS $$
+BEGIN
+  IF value ~* '^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$' THEN
+    RETURN value::uuid;
+  END IF;
+  RETURN NULL;
+END;
+$$ language 'plpgsql' IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.timestamptz_or_null(value text)
+RETURNS timestamp WITH TIME ZONE AS $$
+BEGIN
+  -- only date times with an offset, so that the value does not depend on the session time zone
+  IF value ~ '^\d{4}-\d{2}-\d{2}T\d{2}:\d{2}:\d{2}(\.\d+)?(Z|[+-]\d{2}(:?\d{2})?)$' THEN
+    BEGIN
+      RETURN value::timestamp WITH TIME ZONE;
+    EXCEPTION WHEN datetime_field_overflow OR invalid_datetime_format THEN
+      RETURN NULL;
+    END;
+  END IF;
+  RETURN NULL;
+END;
+$$ language 'plpgsql' STABLE;
+
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.set_loan_columns()
+RETURNS TRIGGER AS $$
+BEGIN
+  NEW.user_id = myuniversity_mymodule.uuid_or_null(NEW.jsonb->>'userId');
+  NEW.item_id = myuniversity_mymodule.uuid_or_null(NEW.jsonb->>'itemId');
+  NEW.status_name = NEW.jsonb->'status'->>'name';
+  NEW.due_date = myuniversity_mymodule.timestamptz_or_null(NEW.jsonb->>'dueDate');
+  NEW.loan_date = myuniversity_mymodule.timestamptz_or_null(NEW.jsonb->>'loanDate');
+  RETURN NEW;
+END;
+$$ language 'plpgsql';
+
+CREATE TRIGGER set_loan_columns_trigger BEFORE INSERT OR UPDATE ON myuniversity_mymodule.loan FOR EACH ROW EXECUTE PROCEDURE myuniversity_mymodule.set_loan_columns();
+
+CREATE OR REPLACE FUNCTION myuniversity_mymodule.set_loan_rules_version()
+RETURNS TRIGGER AS $$
+BEGIN
+  NEW.version = nextval('myuniversity_mymodule.loan_rules_version_seq');
+  RETURN NEW;
+END;
+$$ language 'plpgsql';
+
+CREATE TRIGGER set_loan_rules_version_trigger BEFORE UPDATE ON myuniversity_mymodule.loan_rules FOR EACH ROW EXECUTE PROCEDURE myuniversity_mymodule.set_loan_rules_version();
+
 -- auto populate the meta data schema
 
 -- on create of user record - pull creation date and creator into dedicated column - rmb makes auto-populates these fields in the md fields
@@ -87,3 +198,4 @@ CREATE TRIGGER set_requests_metadata_properties_in_json_trigger BEFORE UPDATE ON
 
 -- --- end auto populate meta data schema ------------
 GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA myuniversity_mymodule TO myuniversity_mymodule;
+GRANT ALL PRIVILEGES ON SEQUENCE myuniversity_mymodule.loan_rules_version_seq TO myuniversity_mymodule;
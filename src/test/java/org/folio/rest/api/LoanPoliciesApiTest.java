@@ -6,6 +6,7 @@ import io.vertx.core.json.JsonObject;
 import org.folio.rest.support.HttpClient;
 import org.folio.rest.support.JsonResponse;
 import org.folio.rest.support.ResponseHandler;
+import org.folio.rest.support.TextResponse;
 import org.folio.rest.support.builders.LoanPolicyRequestBuilder;
 import org.hamcrest.junit.MatcherAssert;
 import org.junit.After;
@@ -323,6 +324,60 @@ public class LoanPoliciesApiTest {
     assertThat(renewalsPolicy.getJsonObject("period"), matchesPeriod(30, "DAYS"));
   }
 
+  @Test
+  public void cannotUpdateALoanPolicyWithADifferentIdInTheBody()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    UUID id = UUID.randomUUID();
+
+    createLoanPolicy(new LoanPolicyRequestBuilder().withId(id).create());
+
+    CompletableFuture<TextResponse> updateCompleted = new CompletableFuture<>();
+
+    JsonObject loanPolicyRequest = new LoanPolicyRequestBuilder()
+      .withId(UUID.randomUUID())
+      .create();
+
+    client.put(loanPolicyStorageUrl(String.format("/%s", id.toString())),
+      loanPolicyRequest, StorageTestSuite.TENANT_ID,
+      ResponseHandler.text(updateCompleted));
+
+    TextResponse response = updateCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Should have failed to update loan policy: %s",
+      response.getBody()), response.getStatusCode(),
+      is(HttpURLConnection.HTTP_BAD_REQUEST));
+
+    assertThat(response.getBody(), is("id in body does not match path"));
+  }
+
+  @Test
+  public void canUpdateALoanPolicyWhenTheIdInTheBodyDiffersOnlyByCase()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    UUID id = UUID.randomUUID();
+
+    createLoanPolicy(new LoanPolicyRequestBuilder().withId(id).create());
+
+    CompletableFuture<TextResponse> updateCompleted = new CompletableFuture<>();
+
+    client.put(loanPolicyStorageUrl(String.format("/%s", id.toString().toUpperCase())),
+      new LoanPolicyRequestBuilder().withId(id).create(), StorageTestSuite.TENANT_ID,
+      ResponseHandler.text(updateCompleted));
+
+    TextResponse response = updateCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to update loan policy: %s",
+      response.getBody()), response.getStatusCode(),
+      is(HttpURLConnection.HTTP_NO_CONTENT));
+  }
+
   @Test
   public void canPageLoanPolicies()
     throws InterruptedException,
@@ -401,6 +456,128 @@ public class LoanPoliciesApiTest {
       getResponse.getStatusCode(), is(HttpURLConnection.HTTP_NOT_FOUND));
   }
 
+  @Test
+  public void canGetAChangedLoanPolicyAfterItHasBeenFetched()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException,
+    UnsupportedEncodingException {
+
+    UUID id = UUID.randomUUID();
+
+    createLoanPolicy(new LoanPolicyRequestBuilder().withId(id).create());
+
+    assertThat(getById(id).getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    CompletableFuture<JsonResponse> updateCompleted = new CompletableFuture<>();
+
+    client.put(loanPolicyStorageUrl(String.format("/%s", id.toString())),
+      new LoanPolicyRequestBuilder().withId(id).withName("A Different Name").create(),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(updateCompleted));
+
+    assertThat(updateCompleted.get(5, TimeUnit.SECONDS).getStatusCode(),
+      is(HttpURLConnection.HTTP_NO_CONTENT));
+
+    JsonResponse getResponse = getById(id);
+
+    assertThat(getResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+    assertThat(getResponse.getJson().getString("name"), is("A Different Name"));
+
+    CompletableFuture<JsonResponse> deleteCompleted = new CompletableFuture<>();
+
+    client.delete(loanPolicyStorageUrl(String.format("/%s", id.toString())),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(deleteCompleted));
+
+    assertThat(deleteCompleted.get(5, TimeUnit.SECONDS).getStatusCode(),
+      is(HttpURLConnection.HTTP_NO_CONTENT));
+
+    assertThat(getById(id).getStatusCode(), is(HttpURLConnection.HTTP_NOT_FOUND));
+  }
+
+  @Test
+  public void canGetAChangedLoanPolicyAfterItHasBeenFetchedUsingAnUpperCaseId()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    UUID id = UUID.randomUUID();
+
+    createLoanPolicy(new LoanPolicyRequestBuilder().withId(id).create());
+
+    URL upperCaseUrl = loanPolicyStorageUrl(
+      String.format("/%s", id.toString().toUpperCase()));
+
+    CompletableFuture<JsonResponse> firstGetCompleted = new CompletableFuture<>();
+
+    client.get(upperCaseUrl, StorageTestSuite.TENANT_ID,
+      ResponseHandler.json(firstGetCompleted));
+
+    assertThat(firstGetCompleted.get(5, TimeUnit.SECONDS).getStatusCode(),
+      is(HttpURLConnection.HTTP_OK));
+
+    CompletableFuture<JsonResponse> updateCompleted = new CompletableFuture<>();
+
+    client.put(loanPolicyStorageUrl(String.format("/%s", id.toString())),
+      new LoanPolicyRequestBuilder().withId(id).withName("A Different Name").create(),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(updateCompleted));
+
+    assertThat(updateCompleted.get(5, TimeUnit.SECONDS).getStatusCode(),
+      is(HttpURLConnection.HTTP_NO_CONTENT));
+
+    CompletableFuture<JsonResponse> secondGetCompleted = new CompletableFuture<>();
+
+    client.get(upperCaseUrl, StorageTestSuite.TENANT_ID,
+      ResponseHandler.json(secondGetCompleted));
+
+    JsonResponse getResponse = secondGetCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(getResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+    assertThat(getResponse.getJson().getString("name"), is("A Different Name"));
+  }
+
+  @Test
+  public void repeatedlyFetchingALoanPolicyIsACacheHit()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException,
+    UnsupportedEncodingException {
+
+    UUID id = UUID.randomUUID();
+
+    createLoanPolicy(new LoanPolicyRequestBuilder().withId(id).create());
+
+    getById(id);
+
+    long hitsBefore = getCacheStatistics().getLong("hits");
+
+    getById(id);
+    getById(id);
+
+    assertThat(getCacheStatistics().getLong("hits"), is(hitsBefore + 2));
+  }
+
+  private JsonObject getCacheStatistics()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture<>();
+
+    client.get(StorageTestSuite.storageUrl("/loan-policy-storage/cache-statistics"),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    JsonResponse response = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get cache statistics: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    return response.getJson();
+  }
+
   private static URL loanPolicyStorageUrl() throws MalformedURLException {
     return loanPolicyStorageUrl("");
   }
@@ -2,11 +2,13 @@ package org.folio.rest.api;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
 import static org.hamcrest.core.IsNull.notNullValue;
 
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -98,6 +100,69 @@ public class LoanRulesApiTest {
     putAndGet(exampleLoanRules2());
   }
 
+  /** @return the status code and ETag header of the get response */
+  private String[] getWithIfNoneMatch(String ifNoneMatch) throws Exception {
+    CompletableFuture<String[]> getCompleted = new CompletableFuture<>();
+    client.get(loanRulesStorageUrl().toString(), StorageTestSuite.TENANT_ID,
+      ifNoneMatch == null
+        ? Collections.emptyMap()
+        : Collections.singletonMap("If-None-Match", ifNoneMatch),
+      response -> response.bodyHandler(body -> getCompleted.complete(new String[] {
+        String.valueOf(response.statusCode()), response.getHeader("ETag") })));
+    return getCompleted.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void notModifiedWhenETagMatches() throws Exception {
+    put204(exampleLoanRules());
+
+    String[] first = getWithIfNoneMatch(null);
+    assertThat(first[0], is("200"));
+    assertThat(first[1], is(notNullValue()));
+
+    String[] unchanged = getWithIfNoneMatch(first[1]);
+    assertThat(unchanged[0], is("304"));
+    assertThat(unchanged[1], is(first[1]));
+
+    put204(exampleLoanRules2());
+
+    String[] changed = getWithIfNoneMatch(first[1]);
+    assertThat(changed[0], is("200"));
+    assertThat(changed[1], is(not(first[1])));
+  }
+
+  @Test
+  public void modifiedWhenChangedWithoutThisInstanceOfTheModule() throws Exception {
+    put204(exampleLoanRules());
+
+    String[] first = getWithIfNoneMatch(null);
+    assertThat(first[0], is("200"));
+
+    //As if changed through another instance of the module
+    StorageTestSuite.executeSql(String.format(
+      "UPDATE %s_%s.loan_rules SET jsonb = jsonb_set(jsonb," +
+        " '{loanRulesAsTextFile}', '\"fallback-policy: general-loan\\n\"')",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage"));
+
+    String[] changed = getWithIfNoneMatch(first[1]);
+    assertThat(changed[0], is("200"));
+    assertThat(changed[1], is(not(first[1])));
+  }
+
+  @Test
+  public void changedWithoutThisInstanceOfTheModuleIsNotServedFromTheCache() throws Exception {
+    putAndGet(exampleLoanRules());
+
+    //As if changed through another instance of the module
+    StorageTestSuite.executeSql(String.format(
+      "UPDATE %s_%s.loan_rules SET jsonb = jsonb_set(jsonb," +
+        " '{loanRulesAsTextFile}', '\"fallback-policy: general-loan\\n\"')",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage"));
+
+    assertThat(get().getString("loanRulesAsTextFile"),
+      is("fallback-policy: general-loan\n"));
+  }
+
   @Test
   public void putNullFields() throws Exception {
     LoanRules loanRules = new LoanRules();
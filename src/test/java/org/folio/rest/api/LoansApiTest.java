@@ -2,6 +2,9 @@ package org.folio.rest.api;
 
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.ResultSet;
+import org.folio.rest.impl.LoansAPI;
+import org.folio.rest.impl.PrimaryKey;
 import org.folio.rest.jaxrs.model.MetaData;
 import org.folio.rest.persist.PostgresClient;
 import org.folio.rest.support.*;
@@ -164,6 +167,27 @@ public class LoansApiTest {
       loan.getString("dueDate"), is("2017-04-20T07:21:45.000+0000"));
   }
 
+  @Test
+  public void createdLoanIsTheSameAsTheStoredLoan()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException,
+    UnsupportedEncodingException {
+
+    IndividualResource loan = createLoan(loanRequest(null, UUID.randomUUID(),
+      UUID.randomUUID(), new DateTime(2017, 3, 20, 7, 21, 45, DateTimeZone.UTC),
+      "Open", new DateTime(2017, 4, 20, 7, 21, 45, DateTimeZone.UTC),
+      UUID.randomUUID()));
+
+    JsonResponse getResponse = getById(UUID.fromString(loan.getId()));
+
+    assertThat(String.format("Failed to get loan: %s", getResponse.getBody()),
+      getResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    assertThat(loan.copyJson(), is(getResponse.getJson()));
+  }
+
   @Test
   public void canCreateALoanAtASpecificLocation()
     throws MalformedURLException,
@@ -383,6 +407,126 @@ public class LoansApiTest {
     assertThat(getResponse.getStatusCode(), is(HttpURLConnection.HTTP_NOT_FOUND));
   }
 
+  @Test
+  public void cannotGetALoanForAnIdThatIsNotAUuid()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl("/not-a-uuid"), StorageTestSuite.TENANT_ID,
+      ResponseHandler.json(getCompleted));
+
+    assertThat(getCompleted.get(5, TimeUnit.SECONDS).getStatusCode(),
+      is(HttpURLConnection.HTTP_NOT_FOUND));
+  }
+
+  @Test
+  public void findingARecordByIdUsesThePrimaryKey()
+    throws InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    String schema = String.format("%s_%s",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage");
+
+    String id = UUID.randomUUID().toString();
+
+    for(String table : new String[] { "loan", "request", "loan_policy" }) {
+      String plan = StorageTestSuite.indexedQueryPlan(String.format(
+        "SELECT * FROM %s.%s %s", schema, table, PrimaryKey.filter(table, id)));
+
+      assertThat(plan, containsString(table + "_pkey"));
+
+      String deletePlan = StorageTestSuite.indexedQueryPlan(
+        PrimaryKey.delete(StorageTestSuite.TENANT_ID, table, id));
+
+      assertThat(deletePlan, containsString(table + "_pkey"));
+    }
+  }
+
+  @Test
+  public void searchingForOpenLoansByItemOrUserUsesAnIndex()
+    throws Exception {
+
+    String schema = String.format("%s_%s",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage");
+
+    UUID id = UUID.randomUUID();
+
+    //status.name=Open is a word match, so is left to CQL2PgJSON
+    String itemPlan = StorageTestSuite.indexedQueryPlan(String.format(
+      "SELECT jsonb FROM %s.loan %s", schema,
+      LoansAPI.loanFilter(String.format("itemId=%s and status.name=Open", id))));
+
+    assertThat(itemPlan, containsString("loan_item_id_idx"));
+
+    String userPlan = StorageTestSuite.indexedQueryPlan(String.format(
+      "SELECT jsonb FROM %s.loan %s", schema,
+      LoansAPI.loanFilter(String.format(
+        "userId=%s and status.name=Open sortBy loanDate", id))));
+
+    assertThat(userPlan, containsString("loan_user_id_idx"));
+  }
+
+  @Test
+  public void findingTheOpenLoanForAnItemUsesTheOpenLoanIndex()
+    throws Exception {
+
+    String schema = String.format("%s_%s",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage");
+
+    UUID itemId = UUID.randomUUID();
+
+    //The forms clients send, as well as the exact match
+    String[] queries = {
+      String.format("itemId=\"%s\" and status.name=\"Open\"", itemId),
+      String.format("status.name=open and itemId=%s", itemId),
+      String.format("itemId==%s and status.name==Open", itemId) };
+
+    for(String query : queries) {
+      String filter = LoansAPI.openLoanFilter(query);
+
+      assertThat(String.format("%s should be for the open loan", query),
+        filter, is(notNullValue()));
+
+      assertThat(StorageTestSuite.indexedQueryPlan(String.format(
+        "SELECT jsonb FROM %s.loan %s", schema, filter)),
+        containsString("loan_itemid_open_idx"));
+    }
+
+    assertThat(LoansAPI.openLoanFilter(
+      String.format("itemId=%s and status.name=Closed", itemId)),
+      is(nullValue()));
+
+    assertThat(LoansAPI.openLoanFilter(
+      String.format("itemId=%s and status.name==open", itemId)),
+      is(nullValue()));
+  }
+
+  @Test
+  public void idInJsonMustMatchThePrimaryKey()
+    throws InterruptedException,
+    TimeoutException {
+
+    String schema = String.format("%s_%s",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage");
+
+    try {
+      StorageTestSuite.executeSql(String.format(
+        "INSERT INTO %s.loan (_id, jsonb) VALUES ('%s', '{\"id\": \"%s\"}')",
+        schema, UUID.randomUUID(), UUID.randomUUID()));
+
+      Assert.fail("a loan with an ID that does not match the primary key was stored");
+    }
+    catch(ExecutionException e) {
+      assertThat(e.getCause().getMessage(),
+        containsString("loan_id_matches_primary_key"));
+    }
+  }
+
   @Test
   public void canCompleteALoanByReturningTheItem()
     throws InterruptedException,
@@ -472,6 +616,85 @@ public class LoansApiTest {
       updatedLoan.getInteger("renewalCount"), is(1));
   }
 
+  @Test
+  public void canCreateALoanAtASpecificLocationWithoutAnId()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    UUID id = UUID.randomUUID();
+
+    JsonObject loanRequest = loanRequest(null, UUID.randomUUID(),
+      UUID.randomUUID(), DateTime.now(), "Open", null, null);
+
+    CompletableFuture<JsonResponse> createCompleted = new CompletableFuture();
+
+    client.put(loanStorageUrl(String.format("/%s", id.toString())), loanRequest,
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(createCompleted));
+
+    JsonResponse response = createCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to create loan: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_NO_CONTENT));
+
+    JsonResponse getResponse = getById(id);
+
+    assertThat(String.format("Failed to get loan: %s", getResponse.getBody()),
+      getResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    assertThat("id does not match",
+      getResponse.getJson().getString("id"), is(id.toString()));
+  }
+
+  @Test
+  public void cannotUpdateALoanWithADifferentIdInTheBody()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    IndividualResource loan = createLoan(loanRequest());
+
+    JsonObject changedLoan = loan.copyJson()
+      .put("id", UUID.randomUUID().toString());
+
+    CompletableFuture<TextResponse> putCompleted = new CompletableFuture();
+
+    client.put(loanStorageUrl(String.format("/%s", loan.getId())), changedLoan,
+      StorageTestSuite.TENANT_ID, ResponseHandler.text(putCompleted));
+
+    TextResponse response = putCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Should have failed to update loan: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_BAD_REQUEST));
+
+    assertThat(response.getBody(), is("id in body does not match path"));
+  }
+
+  @Test
+  public void canUpdateALoanWhenTheIdInTheBodyDiffersOnlyByCase()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    IndividualResource loan = createLoan(loanRequest());
+
+    JsonObject changedLoan = loan.copyJson()
+      .put("action", "renewed");
+
+    CompletableFuture<TextResponse> putCompleted = new CompletableFuture();
+
+    client.put(loanStorageUrl(String.format("/%s", loan.getId().toUpperCase())),
+      changedLoan, StorageTestSuite.TENANT_ID, ResponseHandler.text(putCompleted));
+
+    TextResponse response = putCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to update loan: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_NO_CONTENT));
+  }
+
   @Test
   public void cannotUpdateALoanWithInvalidDates()
     throws InterruptedException,
@@ -511,76 +734,427 @@ public class LoansApiTest {
     TimeoutException,
     ExecutionException {
 
-    DateTime loanDate = new DateTime(2017, 3, 1, 13, 25, 46, 232, DateTimeZone.UTC);
+    DateTime loanDate = new DateTime(2017, 3, 1, 13, 25, 46, 232, DateTimeZone.UTC);
+
+    IndividualResource loan = createLoan(loanRequest(loanDate));
+
+    JsonObject returnedLoan = loan.copyJson();
+
+    returnedLoan
+      .put("status", new JsonObject().put("name", "Closed"));
+
+    CompletableFuture<TextResponse> putCompleted = new CompletableFuture();
+
+    client.put(loanStorageUrl(String.format("/%s", loan.getId())), returnedLoan,
+      StorageTestSuite.TENANT_ID, ResponseHandler.text(putCompleted));
+
+    TextResponse response = putCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Should have failed to update loan: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_BAD_REQUEST));
+
+    assertThat(response.getBody(),
+      containsString("return date is mandatory to close a loan"));
+  }
+
+  @Test
+  public void canPageLoans()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException,
+    UnsupportedEncodingException {
+
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+
+    CompletableFuture<JsonResponse> firstPageCompleted = new CompletableFuture();
+    CompletableFuture<JsonResponse> secondPageCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl() + "?limit=4", StorageTestSuite.TENANT_ID,
+      ResponseHandler.json(firstPageCompleted));
+
+    client.get(loanStorageUrl() + "?limit=4&offset=4", StorageTestSuite.TENANT_ID,
+      ResponseHandler.json(secondPageCompleted));
+
+    JsonResponse firstPageResponse = firstPageCompleted.get(5, TimeUnit.SECONDS);
+    JsonResponse secondPageResponse = secondPageCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get first page of loans: %s",
+      firstPageResponse.getBody()),
+      firstPageResponse.getStatusCode(), is(200));
+
+    assertThat(String.format("Failed to get second page of loans: %s",
+      secondPageResponse.getBody()),
+      secondPageResponse.getStatusCode(), is(200));
+
+    JsonObject firstPage = firstPageResponse.getJson();
+    JsonObject secondPage = secondPageResponse.getJson();
+
+    JsonArray firstPageLoans = firstPage.getJsonArray("loans");
+    JsonArray secondPageLoans = secondPage.getJsonArray("loans");
+
+    assertThat(firstPageLoans.size(), is(4));
+    assertThat(firstPage.getInteger("totalRecords"), is(7));
+
+    assertThat(secondPageLoans.size(), is(3));
+    assertThat(secondPage.getInteger("totalRecords"), is(7));
+  }
+
+  @Test
+  public void canPageLoansUsingACursor()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException,
+    UnsupportedEncodingException {
+
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+
+    CompletableFuture<JsonResponse> firstPageCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl() + "?limit=4&cursor=*", StorageTestSuite.TENANT_ID,
+      ResponseHandler.json(firstPageCompleted));
+
+    JsonResponse firstPageResponse = firstPageCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get first page of loans: %s",
+      firstPageResponse.getBody()),
+      firstPageResponse.getStatusCode(), is(200));
+
+    JsonObject firstPage = firstPageResponse.getJson();
+
+    assertThat(firstPage.getJsonArray("loans").size(), is(4));
+    assertThat(firstPage.getString("next"), is(notNullValue()));
+
+    CompletableFuture<JsonResponse> secondPageCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl() + "?limit=4&cursor=" + firstPage.getString("next"),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(secondPageCompleted));
+
+    JsonResponse secondPageResponse = secondPageCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get second page of loans: %s",
+      secondPageResponse.getBody()),
+      secondPageResponse.getStatusCode(), is(200));
+
+    JsonObject secondPage = secondPageResponse.getJson();
+
+    JsonArray secondPageLoans = secondPage.getJsonArray("loans");
+
+    assertThat(secondPageLoans.size(), is(3));
+    assertThat(secondPage.getString("next"), is(nullValue()));
+
+    JsonArrayHelper.toList(firstPage.getJsonArray("loans")).forEach(loan ->
+      assertThat(JsonArrayHelper.toList(secondPageLoans).stream()
+        .anyMatch(other -> other.getString("id").equals(loan.getString("id"))),
+        is(false)));
+  }
+
+  @Test
+  public void cannotPageLoansUsingAnInvalidCursor()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    CompletableFuture<TextResponse> getCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl() + "?limit=4&cursor=not-a-cursor",
+      StorageTestSuite.TENANT_ID, ResponseHandler.text(getCompleted));
+
+    TextResponse response = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(response.getStatusCode(), is(HttpURLConnection.HTTP_BAD_REQUEST));
+  }
+
+  @Test
+  public void requestsForLoansAreIncludedInMetrics()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    createLoan(loanRequest());
+
+    CompletableFuture<TextResponse> getCompleted = new CompletableFuture();
+
+    client.get(StorageTestSuite.storageUrl("/circulation-storage/metrics"),
+      StorageTestSuite.TENANT_ID, ResponseHandler.text(getCompleted));
+
+    TextResponse response = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get metrics: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    assertThat(response.getBody(), containsString(String.format(
+      "circulation_storage_requests_total{endpoint=\"postLoanStorageLoans\",tenant=\"%s\"}",
+      StorageTestSuite.TENANT_ID)));
+
+    assertThat(response.getBody(), containsString(
+      "circulation_storage_cache_hits_total{cache=\"loan_cql_translations\"}"));
+  }
+
+  @Test
+  public void canGetLoansWithoutTotalRecords()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException,
+    UnsupportedEncodingException {
+
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+    createLoan(loanRequest());
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl() + "?limit=2&totalRecords=none",
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    JsonResponse response = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get loans: %s", response.getBody()),
+      response.getStatusCode(), is(200));
+
+    JsonObject page = response.getJson();
+
+    assertThat(page.getJsonArray("loans").size(), is(2));
+    assertThat(page.containsKey("totalRecords"), is(false));
+  }
+
+  @Test
+  public void canGetEstimatedTotalRecordsForLoans()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException,
+    UnsupportedEncodingException {
+
+    UUID userId = UUID.randomUUID();
+
+    createLoan(loanRequest().put("userId", userId.toString()));
+    createLoan(loanRequest().put("userId", userId.toString()));
+    createLoan(loanRequest().put("userId", userId.toString()));
+    createLoan(loanRequest());
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture();
+
+    //Small result sets are counted exactly, even when estimated
+    client.get(loanStorageUrl() + String.format(
+      "?query=userId=%s&limit=1&totalRecords=estimated", userId),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    JsonResponse response = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get loans: %s", response.getBody()),
+      response.getStatusCode(), is(200));
+
+    JsonObject page = response.getJson();
+
+    assertThat(page.getJsonArray("loans").size(), is(1));
+    assertThat(page.getInteger("totalRecords"), is(3));
+  }
+
+  @Test
+  public void canStoreABatchOfLoans()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    UUID existingLoanId = UUID.randomUUID();
+    UUID newLoanId = UUID.randomUUID();
+    UUID invalidLoanId = UUID.randomUUID();
+
+    JsonObject existingLoan = loanRequest(existingLoanId, UUID.randomUUID(),
+      UUID.randomUUID(), DateTime.now(), "Open", null, null);
+
+    createLoan(existingLoan);
+
+    JsonArray batch = new JsonArray()
+      .add(existingLoan.copy().put("status", new JsonObject().put("name", "Closed")))
+      .add(loanRequest(newLoanId, UUID.randomUUID(), UUID.randomUUID(),
+        DateTime.now(), "Open", null, null))
+      .add(loanRequest(invalidLoanId, UUID.randomUUID(), UUID.randomUUID(),
+        DateTime.now(), "Open", null, null).put("loanDate", "foo"));
+
+    CompletableFuture<JsonResponse> batchCompleted = new CompletableFuture();
+
+    client.post(loanBatchUrl(), new JsonObject().put("loans", batch),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(batchCompleted));
+
+    JsonResponse response = batchCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to store batch of loans: %s",
+      response.getBody()), response.getStatusCode(), is(200));
+
+    JsonArray results = response.getJson().getJsonArray("results");
+
+    assertThat(results.size(), is(3));
+
+    assertThat(results.getJsonObject(0).getString("id"), is(existingLoanId.toString()));
+    assertThat(results.getJsonObject(0).getString("status"), is("updated"));
+
+    assertThat(results.getJsonObject(1).getString("id"), is(newLoanId.toString()));
+    assertThat(results.getJsonObject(1).getString("status"), is("created"));
+
+    assertThat(results.getJsonObject(2).getString("id"), is(invalidLoanId.toString()));
+    assertThat(results.getJsonObject(2).getString("status"), is("failed"));
+    assertThat(results.getJsonObject(2).getString("message"),
+      containsString("loan date must be a date time"));
+
+    assertThat(getById(existingLoanId).getJson().getJsonObject("status")
+      .getString("name"), is("Closed"));
+
+    assertThat(getById(newLoanId).getStatusCode(), is(HttpURLConnection.HTTP_OK));
+    assertThat(getById(invalidLoanId).getStatusCode(),
+      is(HttpURLConnection.HTTP_NOT_FOUND));
+  }
+
+  @Test
+  public void batchCannotOpenASecondLoanForAnItem()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    UUID itemId = UUID.randomUUID();
+    UUID conflictingLoanId = UUID.randomUUID();
+
+    createLoan(loanRequest(UUID.randomUUID(), itemId, UUID.randomUUID(),
+      DateTime.now(), "Open", null, null));
+
+    JsonArray batch = new JsonArray()
+      .add(loanRequest(conflictingLoanId, itemId, UUID.randomUUID(),
+        DateTime.now(), "Open", null, null))
+      .add(loanRequest());
+
+    CompletableFuture<JsonResponse> batchCompleted = new CompletableFuture();
+
+    client.post(loanBatchUrl(), new JsonObject().put("loans", batch),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(batchCompleted));
+
+    JsonResponse response = batchCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to store batch of loans: %s",
+      response.getBody()), response.getStatusCode(), is(200));
+
+    JsonArray results = response.getJson().getJsonArray("results");
+
+    assertThat(results.getJsonObject(0).getString("status"), is("failed"));
+    assertThat(results.getJsonObject(0).getString("message"),
+      containsString("Cannot have more than one open loan for item"));
+
+    assertThat(results.getJsonObject(1).getString("status"), is("created"));
+
+    assertThat(getById(conflictingLoanId).getStatusCode(),
+      is(HttpURLConnection.HTTP_NOT_FOUND));
+  }
+
+  @Test
+  public void commonlyQueriedPropertiesAreCopiedIntoTypedColumns()
+    throws Exception {
+
+    UUID itemId = UUID.randomUUID();
+    UUID userId = UUID.randomUUID();
+    DateTime loanDate = new DateTime(2017, 3, 1, 13, 25, 46, DateTimeZone.UTC);
+
+    IndividualResource loan = createLoan(loanRequest(UUID.randomUUID(), itemId,
+      userId, loanDate, "Open", loanDate.plus(Period.days(14)), null));
 
-    IndividualResource loan = createLoan(loanRequest(loanDate));
+    JsonObject closedLoan = loan.copyJson()
+      .put("status", new JsonObject().put("name", "Closed"))
+      .put("action", "checkedin")
+      .put("returnDate", loanDate.plus(Period.days(7))
+        .toString(ISODateTimeFormat.dateTime()));
 
-    JsonObject returnedLoan = loan.copyJson();
+    CompletableFuture<JsonResponse> putCompleted = new CompletableFuture();
 
-    returnedLoan
-      .put("status", new JsonObject().put("name", "Closed"));
+    client.put(loanStorageUrl(String.format("/%s", loan.getId())), closedLoan,
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(putCompleted));
 
-    CompletableFuture<TextResponse> putCompleted = new CompletableFuture();
+    putCompleted.get(5, TimeUnit.SECONDS);
+
+    JsonArray columns = StorageTestSuite.executeSql(String.format(
+      "SELECT user_id::text, item_id::text, status_name," +
+        " extract(epoch from due_date)::bigint," +
+        " extract(epoch from loan_date)::bigint" +
+        " FROM %s_%s.loan WHERE _id = '%s'",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage", loan.getId()))
+      .getResults().get(0);
+
+    assertThat(columns.getString(0), is(userId.toString()));
+    assertThat(columns.getString(1), is(itemId.toString()));
+    assertThat(columns.getString(2), is("Closed"));
+    assertThat(columns.getLong(3),
+      is(loanDate.plus(Period.days(14)).getMillis() / 1000));
+    assertThat(columns.getLong(4), is(loanDate.getMillis() / 1000));
+  }
 
-    client.put(loanStorageUrl(String.format("/%s", loan.getId())), returnedLoan,
-      StorageTestSuite.TENANT_ID, ResponseHandler.text(putCompleted));
+  @Test
+  public void canPageThroughOverdueLoans()
+    throws Exception {
 
-    TextResponse response = putCompleted.get(5, TimeUnit.SECONDS);
+    DateTime loanDate = new DateTime(2017, 3, 1, 13, 25, 46, DateTimeZone.UTC);
 
-    assertThat(String.format("Should have failed to update loan: %s", response.getBody()),
-      response.getStatusCode(), is(HttpURLConnection.HTTP_BAD_REQUEST));
+    IndividualResource dueFirst = createLoan(loanRequest(UUID.randomUUID(),
+      UUID.randomUUID(), UUID.randomUUID(), loanDate, "Open",
+      loanDate.plus(Period.days(4)), null));
 
-    assertThat(response.getBody(),
-      containsString("return date is mandatory to close a loan"));
-  }
+    IndividualResource dueSecond = createLoan(loanRequest(UUID.randomUUID(),
+      UUID.randomUUID(), UUID.randomUUID(), loanDate, "Open",
+      loanDate.plus(Period.days(9)), null));
 
-  @Test
-  public void canPageLoans()
-    throws InterruptedException,
-    MalformedURLException,
-    TimeoutException,
-    ExecutionException,
-    UnsupportedEncodingException {
+    //Closed and not yet due loans are not overdue
+    createLoan(loanRequest(UUID.randomUUID(), UUID.randomUUID(),
+      UUID.randomUUID(), loanDate, "Closed", loanDate.plus(Period.days(2)), null));
 
-    createLoan(loanRequest());
-    createLoan(loanRequest());
-    createLoan(loanRequest());
-    createLoan(loanRequest());
-    createLoan(loanRequest());
-    createLoan(loanRequest());
-    createLoan(loanRequest());
+    createLoan(loanRequest(UUID.randomUUID(), UUID.randomUUID(),
+      UUID.randomUUID(), loanDate, "Open", loanDate.plus(Period.days(30)), null));
 
-    CompletableFuture<JsonResponse> firstPageCompleted = new CompletableFuture();
-    CompletableFuture<JsonResponse> secondPageCompleted = new CompletableFuture();
+    String dueBefore = URLEncoder.encode("2017-03-20T00:00:00.000Z", "UTF-8");
 
-    client.get(loanStorageUrl() + "?limit=4", StorageTestSuite.TENANT_ID,
-      ResponseHandler.json(firstPageCompleted));
+    JsonResponse firstPage = getOverdueLoans(
+      String.format("dueBefore=%s&limit=1", dueBefore));
 
-    client.get(loanStorageUrl() + "?limit=4&offset=4", StorageTestSuite.TENANT_ID,
-      ResponseHandler.json(secondPageCompleted));
+    assertThat(String.format("Failed to get overdue loans: %s",
+      firstPage.getBody()), firstPage.getStatusCode(), is(HttpURLConnection.HTTP_OK));
 
-    JsonResponse firstPageResponse = firstPageCompleted.get(5, TimeUnit.SECONDS);
-    JsonResponse secondPageResponse = secondPageCompleted.get(5, TimeUnit.SECONDS);
+    JsonArray firstLoans = firstPage.getJson().getJsonArray("loans");
 
-    assertThat(String.format("Failed to get first page of loans: %s",
-      firstPageResponse.getBody()),
-      firstPageResponse.getStatusCode(), is(200));
+    assertThat(firstLoans.size(), is(1));
+    assertThat(firstLoans.getJsonObject(0).getString("id"), is(dueFirst.getId()));
 
-    assertThat(String.format("Failed to get second page of loans: %s",
-      secondPageResponse.getBody()),
-      secondPageResponse.getStatusCode(), is(200));
+    JsonResponse secondPage = getOverdueLoans(String.format(
+      "dueBefore=%s&limit=1&cursor=%s", dueBefore,
+      firstPage.getJson().getString("next")));
 
-    JsonObject firstPage = firstPageResponse.getJson();
-    JsonObject secondPage = secondPageResponse.getJson();
+    JsonArray secondLoans = secondPage.getJson().getJsonArray("loans");
 
-    JsonArray firstPageLoans = firstPage.getJsonArray("loans");
-    JsonArray secondPageLoans = secondPage.getJsonArray("loans");
+    assertThat(secondLoans.size(), is(1));
+    assertThat(secondLoans.getJsonObject(0).getString("id"), is(dueSecond.getId()));
+    assertThat(secondPage.getJson().getString("next"), nullValue());
+  }
 
-    assertThat(firstPageLoans.size(), is(4));
-    assertThat(firstPage.getInteger("totalRecords"), is(7));
+  @Test
+  public void cannotGetOverdueLoansForAnInvalidDate()
+    throws Exception {
 
-    assertThat(secondPageLoans.size(), is(3));
-    assertThat(secondPage.getInteger("totalRecords"), is(7));
+    JsonResponse response = getOverdueLoans("dueBefore=tomorrow");
+
+    assertThat(response.getStatusCode(), is(HttpURLConnection.HTTP_BAD_REQUEST));
   }
 
   @Test
@@ -689,6 +1263,103 @@ public class LoansApiTest {
     assertThat(closedLoans.getInteger("totalRecords"), is(4));
   }
 
+  @Test
+  public void canFilterByLoanStatusRegardlessOfCase()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException,
+    UnsupportedEncodingException {
+
+    UUID userId = UUID.randomUUID();
+
+    createLoan(loanRequest(userId, "Open"));
+    createLoan(loanRequest(userId, "Open"));
+    createLoan(loanRequest(userId, "Closed"));
+
+    CompletableFuture<JsonResponse> searchCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl(),
+      String.format("query=userId=%s+and+status.name=open", userId),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(searchCompleted));
+
+    JsonResponse searchResponse = searchCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get open loans: %s",
+      searchResponse.getBody()),
+      searchResponse.getStatusCode(), is(200));
+
+    assertThat(searchResponse.getJson().getJsonArray("loans").size(), is(2));
+    assertThat(searchResponse.getJson().getInteger("totalRecords"), is(2));
+  }
+
+  @Test
+  public void canFindOpenLoanForItem()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException,
+    UnsupportedEncodingException {
+
+    UUID itemId = UUID.randomUUID();
+
+    createLoan(loanRequest(UUID.randomUUID(), itemId, UUID.randomUUID(),
+      DateTime.now(), "Closed", null, null));
+
+    createLoan(loanRequest(UUID.randomUUID(), itemId, UUID.randomUUID(),
+      DateTime.now(), "Closed", null, null));
+
+    IndividualResource openLoan = createLoan(loanRequest(UUID.randomUUID(),
+      itemId, UUID.randomUUID(), DateTime.now(), "Open", null, null));
+
+    createLoan(loanRequest());
+
+    CompletableFuture<JsonResponse> searchCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl(),
+      String.format("query=itemId=\"%s\"+and+status.name=\"Open\"", itemId),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(searchCompleted));
+
+    JsonResponse searchResponse = searchCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get open loan: %s",
+      searchResponse.getBody()),
+      searchResponse.getStatusCode(), is(200));
+
+    JsonArray loans = searchResponse.getJson().getJsonArray("loans");
+
+    assertThat(loans.size(), is(1));
+    assertThat(searchResponse.getJson().getInteger("totalRecords"), is(1));
+    assertThat(loans.getJsonObject(0).getString("id"), is(openLoan.getId()));
+  }
+
+  @Test
+  public void cannotHaveMoreThanOneOpenLoanForAnItem()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    UUID itemId = UUID.randomUUID();
+
+    createLoan(loanRequest(UUID.randomUUID(), itemId, UUID.randomUUID(),
+      DateTime.now(), "Open", null, null));
+
+    CompletableFuture<JsonResponse> createCompleted = new CompletableFuture();
+
+    client.post(loanStorageUrl(), loanRequest(UUID.randomUUID(), itemId,
+      UUID.randomUUID(), DateTime.now(), "Open", null, null),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(createCompleted));
+
+    JsonResponse response = createCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Creating the loan should fail: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_BAD_REQUEST));
+
+    assertThat(response.getBody(),
+      containsString("Cannot have more than one open loan for item"));
+  }
+
   @Test
   public void loanHistoryQuery()
     throws MalformedURLException,
@@ -803,6 +1474,258 @@ public class LoansApiTest {
       finalRes4.getJson().getJsonArray("loans").getJsonObject(0).getString("action"), is("checkedin"));
   }
 
+  @Test
+  public void queuedLoanHistoryIsCompleteWhenQueried()
+    throws Exception {
+
+    String schema = String.format("%s_%s", StorageTestSuite.TENANT_ID,
+      "mod_circulation_storage");
+
+    StorageTestSuite.executeSql(String.format(
+      "SELECT %s.set_loan_history_mode('queued')", schema));
+
+    try {
+      IndividualResource loan = createLoan(loanRequest());
+
+      JsonObject renewedLoan = loan.copyJson()
+        .put("action", "renewed")
+        .put("renewalCount", 1);
+
+      CompletableFuture<JsonResponse> putCompleted = new CompletableFuture();
+
+      client.put(loanStorageUrl(String.format("/%s", loan.getId())), renewedLoan,
+        StorageTestSuite.TENANT_ID, ResponseHandler.json(putCompleted));
+
+      JsonResponse putResponse = putCompleted.get(5, TimeUnit.SECONDS);
+
+      assertThat(String.format("Failed to update loan: %s", putResponse.getBody()),
+        putResponse.getStatusCode(), is(HttpURLConnection.HTTP_NO_CONTENT));
+
+      CompletableFuture<JsonResponse> getCompleted = new CompletableFuture();
+
+      client.get(StorageTestSuite.storageUrl("/loan-storage/loan-history")
+          + "?query=" + URLEncoder.encode("id=" + loan.getId(), "UTF-8"),
+        StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+      JsonResponse history = getCompleted.get(5, TimeUnit.SECONDS);
+
+      assertThat(String.format("Failed to get loan history: %s",
+        history.getBody()), history.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+      JsonArray loans = history.getJson().getJsonArray("loans");
+
+      assertThat(loans.size(), is(2));
+      assertThat(loans.getJsonObject(0).getString("action"), is("renewed"));
+      assertThat(loans.getJsonObject(1).getString("action"), is("checkedout"));
+
+      assertThat("queue should be empty once history is queried",
+        StorageTestSuite.executeSql(String.format(
+          "SELECT seq FROM %s.loan_history_queue", schema)).getNumRows(), is(0));
+    }
+    finally {
+      StorageTestSuite.executeSql(String.format(
+        "SELECT %s.set_loan_history_mode('direct')", schema));
+    }
+  }
+
+  @Test
+  public void loanHistoryPastTheEndStillReportsTheTotal()
+    throws Exception {
+
+    IndividualResource loan = createLoan(loanRequest());
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture();
+
+    client.get(StorageTestSuite.storageUrl("/loan-storage/loan-history")
+        + "?offset=10&query=" + URLEncoder.encode("id=" + loan.getId(), "UTF-8"),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    JsonResponse history = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get loan history: %s",
+      history.getBody()), history.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    assertThat(history.getJson().getJsonArray("loans").size(), is(0));
+    assertThat(history.getJson().getInteger("totalRecords"), is(1));
+  }
+
+  @Test
+  public void loanHistoryPastRetentionIsDetached()
+    throws Exception {
+
+    String schema = String.format("%s_%s", StorageTestSuite.TENANT_ID,
+      "mod_circulation_storage");
+
+    StorageTestSuite.executeSql(String.format(
+      "INSERT INTO %s.loan_history_table" +
+        " SELECT public.gen_random_uuid(), public.gen_random_uuid(), 'I'," +
+        " '{}'::jsonb, '2015-01-15T10:00:00'::timestamp", schema));
+
+    assertThat("history should be in a partition for its month",
+      StorageTestSuite.executeSql(String.format(
+        "SELECT _id FROM %s.loan_history_table_y2015m01", schema)).getNumRows(),
+      is(1));
+
+    String plan = StorageTestSuite.executeSql(String.format(
+      "EXPLAIN SELECT _id FROM %s.loan_history_table" +
+        " WHERE created_date < '2015-02-01'::timestamp", schema))
+      .getResults().toString();
+
+    assertThat("query bounded by date should only scan earlier partitions",
+      plan, not(containsString(DateTime.now().toString("'y'yyyy'm'MM"))));
+
+    StorageTestSuite.executeSql(String.format(
+      "INSERT INTO %s.loan_history_retention (keep) VALUES ('1 year')", schema));
+
+    try {
+      ResultSet removed = StorageTestSuite.executeSql(String.format(
+        "SELECT %s.maintain_loan_history_partitions()", schema));
+
+      assertThat(removed.getResults().toString(),
+        containsString("loan_history_table_y2015m01"));
+
+      assertThat("detached history should not be included",
+        StorageTestSuite.executeSql(String.format(
+          "SELECT _id FROM %s.loan_history_table" +
+            " WHERE created_date < '2016-01-01'::timestamp", schema)).getNumRows(),
+        is(0));
+    }
+    finally {
+      StorageTestSuite.executeSql(String.format(
+        "DELETE FROM %s.loan_history_retention", schema));
+
+      StorageTestSuite.executeSql(String.format(
+        "DROP TABLE IF EXISTS %s.loan_history_table_y2015m01", schema));
+    }
+  }
+
+  @Test
+  public void canGetTheHistoryOfALoan()
+    throws Exception {
+
+    IndividualResource loan = createLoan(loanRequest());
+
+    JsonObject renewedLoan = loan.copyJson()
+      .put("action", "renewed")
+      .put("renewalCount", 1);
+
+    CompletableFuture<JsonResponse> putCompleted = new CompletableFuture();
+
+    client.put(loanStorageUrl(String.format("/%s", loan.getId())), renewedLoan,
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(putCompleted));
+
+    putCompleted.get(5, TimeUnit.SECONDS);
+
+    CompletableFuture<TextResponse> deleteCompleted = new CompletableFuture();
+
+    client.delete(loanStorageUrl(String.format("/%s", loan.getId())),
+      StorageTestSuite.TENANT_ID, ResponseHandler.text(deleteCompleted));
+
+    deleteCompleted.get(5, TimeUnit.SECONDS);
+
+    //Another loan, which should not be included
+    createLoan(loanRequest());
+
+    JsonResponse firstPage = getLoanHistory(loan.getId(), "limit=2");
+
+    assertThat(String.format("Failed to get loan history: %s",
+      firstPage.getBody()), firstPage.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    JsonArray firstLoans = firstPage.getJson().getJsonArray("loans");
+
+    assertThat(firstLoans.size(), is(2));
+    assertThat(firstLoans.getJsonObject(0).getString("action"), is("deleted"));
+    assertThat(firstLoans.getJsonObject(1).getString("action"), is("renewed"));
+
+    String next = firstPage.getJson().getString("next");
+
+    assertThat("should have a cursor for the next page", next, notNullValue());
+
+    JsonResponse secondPage = getLoanHistory(loan.getId(),
+      "limit=2&cursor=" + next);
+
+    JsonArray secondLoans = secondPage.getJson().getJsonArray("loans");
+
+    assertThat(secondLoans.size(), is(1));
+    assertThat(secondLoans.getJsonObject(0).getString("action"), is("checkedout"));
+    assertThat(secondLoans.getJsonObject(0).getString("id"), is(loan.getId()));
+
+    assertThat("should not have a cursor after the last page",
+      secondPage.getJson().getString("next"), nullValue());
+  }
+
+  @Test
+  public void compactLoanHistoryIsRebuiltWhenQueried()
+    throws Exception {
+
+    String schema = String.format("%s_%s", StorageTestSuite.TENANT_ID,
+      "mod_circulation_storage");
+
+    StorageTestSuite.executeSql(String.format(
+      "SELECT %s.set_loan_history_mode('compact')", schema));
+
+    try {
+      IndividualResource loan = createLoan(loanRequest());
+
+      for(int renewal = 1; renewal <= 2; renewal++) {
+        JsonObject renewedLoan = loan.copyJson()
+          .put("action", "renewed")
+          .put("renewalCount", renewal);
+
+        CompletableFuture<JsonResponse> putCompleted = new CompletableFuture();
+
+        client.put(loanStorageUrl(String.format("/%s", loan.getId())),
+          renewedLoan, StorageTestSuite.TENANT_ID,
+          ResponseHandler.json(putCompleted));
+
+        putCompleted.get(5, TimeUnit.SECONDS);
+      }
+
+      assertThat("only the first version should be stored in full",
+        StorageTestSuite.executeSql(String.format(
+          "SELECT _id FROM %s.loan_history_table WHERE orig_id = '%s'" +
+            " AND snapshot", schema, loan.getId())).getNumRows(), is(1));
+
+      JsonResponse history = getLoanHistory(loan.getId(), "limit=10");
+
+      JsonArray versions = history.getJson().getJsonArray("loans");
+
+      assertThat(versions.size(), is(3));
+
+      for(int index = 0; index < versions.size(); index++) {
+        JsonObject version = versions.getJsonObject(index);
+
+        assertThat(version.getString("loanDate"),
+          is(loan.copyJson().getString("loanDate")));
+
+        assertThat(version.getJsonObject("status").getString("name"),
+          is("Open"));
+      }
+
+      assertThat(versions.getJsonObject(0).getInteger("renewalCount"), is(2));
+      assertThat(versions.getJsonObject(1).getInteger("renewalCount"), is(1));
+      assertThat(versions.getJsonObject(2).getString("action"), is("checkedout"));
+
+      CompletableFuture<JsonResponse> queryCompleted = new CompletableFuture();
+
+      client.get(StorageTestSuite.storageUrl("/loan-storage/loan-history")
+          + "?query=" + URLEncoder.encode(
+            "itemId=" + loan.copyJson().getString("itemId"), "UTF-8"),
+        StorageTestSuite.TENANT_ID, ResponseHandler.json(queryCompleted));
+
+      JsonArray byItem = queryCompleted.get(5, TimeUnit.SECONDS).getJson()
+        .getJsonArray("loans");
+
+      assertThat(byItem.size(), is(3));
+      assertThat(byItem.getJsonObject(0).getString("loanDate"),
+        is(loan.copyJson().getString("loanDate")));
+    }
+    finally {
+      StorageTestSuite.executeSql(String.format(
+        "SELECT %s.set_loan_history_mode('direct')", schema));
+    }
+  }
+
   @Test
   public void metaDataPopulated()
     throws Exception {
@@ -1011,6 +1934,34 @@ public class LoansApiTest {
     return getCompleted.get(5, TimeUnit.SECONDS);
   }
 
+  private JsonResponse getLoanHistory(String loanId, String queryString)
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture();
+
+    client.get(loanStorageUrl(String.format("/%s/history?%s", loanId, queryString)),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    return getCompleted.get(5, TimeUnit.SECONDS);
+  }
+
+  private JsonResponse getOverdueLoans(String queryString)
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture();
+
+    client.get(StorageTestSuite.storageUrl("/loan-storage/overdue-loans?" + queryString),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    return getCompleted.get(5, TimeUnit.SECONDS);
+  }
+
   private IndividualResource createLoan(JsonObject loanRequest)
     throws MalformedURLException,
     InterruptedException,
@@ -1095,4 +2046,8 @@ public class LoansApiTest {
 
     return StorageTestSuite.storageUrl("/loan-storage/loans" + subPath);
   }
+
+  private static URL loanBatchUrl() throws MalformedURLException {
+    return StorageTestSuite.storageUrl("/loan-storage/loan-batch");
+  }
 }
@@ -2,6 +2,7 @@ package org.folio.rest.api;
 
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import org.folio.rest.impl.RequestsAPI;
 import org.folio.rest.support.HttpClient;
 import org.folio.rest.support.JsonResponse;
 import org.folio.rest.support.ResponseHandler;
@@ -20,6 +21,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -28,6 +30,7 @@ import java.util.concurrent.TimeoutException;
 
 import static org.folio.rest.support.matchers.TextDateTimeMatcher.withinSecondsAfter;
 import static org.folio.rest.support.matchers.TextDateTimeMatcher.equivalentTo;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
@@ -407,6 +410,58 @@ public class RequestsApiTest {
     assertThat(representation.getJsonObject("requester").getString("barcode"), is("721076398251"));
   }
 
+  @Test
+  public void cannotUpdateARequestWithADifferentIdInTheBody()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    UUID id = UUID.randomUUID();
+
+    createRequest(new RequestRequestBuilder().withId(id).create());
+
+    CompletableFuture<TextResponse> updateCompleted = new CompletableFuture<>();
+
+    JsonObject updateRequestRequest = new RequestRequestBuilder()
+      .withId(UUID.randomUUID())
+      .create();
+
+    client.put(requestStorageUrl(String.format("/%s", id)),
+      updateRequestRequest, StorageTestSuite.TENANT_ID,
+      ResponseHandler.text(updateCompleted));
+
+    TextResponse response = updateCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Should have failed to update request: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_BAD_REQUEST));
+
+    assertThat(response.getBody(), is("id in body does not match path"));
+  }
+
+  @Test
+  public void canUpdateARequestWhenTheIdInTheBodyDiffersOnlyByCase()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    UUID id = UUID.randomUUID();
+
+    createRequest(new RequestRequestBuilder().withId(id).create());
+
+    CompletableFuture<TextResponse> updateCompleted = new CompletableFuture<>();
+
+    client.put(requestStorageUrl(String.format("/%s", id.toString().toUpperCase())),
+      new RequestRequestBuilder().withId(id).create(), StorageTestSuite.TENANT_ID,
+      ResponseHandler.text(updateCompleted));
+
+    TextResponse response = updateCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to update request: %s", response.getBody()),
+      response.getStatusCode(), is(HttpURLConnection.HTTP_NO_CONTENT));
+  }
+
   @Test
   public void updatedRequestHasUpdatedMetadata()
     throws InterruptedException,
@@ -646,6 +701,51 @@ public class RequestsApiTest {
     assertThat(secondPage.getInteger("totalRecords"), is(7));
   }
 
+  @Test
+  public void canPageRequestsUsingACursor()
+    throws InterruptedException,
+    MalformedURLException,
+    TimeoutException,
+    ExecutionException {
+
+    createRequest(new RequestRequestBuilder().create());
+    createRequest(new RequestRequestBuilder().create());
+    createRequest(new RequestRequestBuilder().create());
+    createRequest(new RequestRequestBuilder().create());
+    createRequest(new RequestRequestBuilder().create());
+
+    CompletableFuture<JsonResponse> firstPageCompleted = new CompletableFuture<>();
+
+    client.get(requestStorageUrl() + "?limit=3&cursor=*",
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(firstPageCompleted));
+
+    JsonResponse firstPageResponse = firstPageCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get first page of requests: %s",
+      firstPageResponse.getBody()),
+      firstPageResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    JsonObject firstPage = firstPageResponse.getJson();
+
+    assertThat(firstPage.getJsonArray("requests").size(), is(3));
+
+    CompletableFuture<JsonResponse> secondPageCompleted = new CompletableFuture<>();
+
+    client.get(requestStorageUrl() + "?limit=3&cursor=" + firstPage.getString("next"),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(secondPageCompleted));
+
+    JsonResponse secondPageResponse = secondPageCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get second page of requests: %s",
+      secondPageResponse.getBody()),
+      secondPageResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    JsonObject secondPage = secondPageResponse.getJson();
+
+    assertThat(secondPage.getJsonArray("requests").size(), is(2));
+    assertThat(secondPage.containsKey("next"), is(false));
+  }
+
   @Test
   public void canSearchForRequestsByRequesterId()
     throws MalformedURLException,
@@ -682,6 +782,305 @@ public class RequestsApiTest {
     assertThat(wrappedRequests.getInteger("totalRecords"), is(3));
   }
 
+  @Test
+  public void canSearchForRequestsByTruncatedTitleOrRequesterName()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException,
+    UnsupportedEncodingException {
+
+    createRequest(new RequestRequestBuilder()
+      .withItem("Harry Potter and the Philosopher's Stone", "565578437802")
+      .withRequester("Smith", "Jessica", "721076398251").create());
+
+    createRequest(new RequestRequestBuilder()
+      .withItem("Nod", "565578437803")
+      .withRequester("Smithson", "Stuart", "6837502674015").create());
+
+    createRequest(new RequestRequestBuilder()
+      .withItem("The Hobbit", "565578437804")
+      .withRequester("Jones", "Harriet", "6837502674016").create());
+
+    assertThat(searchForRequests("item.title=harry*").size(), is(1));
+    assertThat(searchForRequests("requester.lastName=smi*").size(), is(2));
+    assertThat(searchForRequests("requester.firstName=Har*").size(), is(1));
+  }
+
+  @Test
+  public void searchingByTruncatedTitleOrRequesterNameCanUseAnIndex()
+    throws Exception {
+
+    String schema = String.format("%s_%s",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage");
+
+    String[] queries = { "item.title=harry*", "requester.lastName=smi*",
+      "requester.firstName=har*", "requester.middleName=ant*" };
+
+    for(String query : queries) {
+      String filter = RequestsAPI.requestFilter(query);
+
+      String plan = StorageTestSuite.indexedQueryPlan(String.format(
+        "SELECT * FROM %s.request %s", schema, filter));
+
+      assertThat(String.format("%s should use an index: %s", query, plan),
+        plan, containsString("Index Scan"));
+    }
+  }
+
+  @Test
+  public void canFindRequestsByItemOrRequesterBarcode()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException,
+    UnsupportedEncodingException {
+
+    createRequest(new RequestRequestBuilder()
+      .withItem("Nod", "565578437802")
+      .withRequester("Smith", "Jessica", "721076398251").create());
+
+    createRequest(new RequestRequestBuilder()
+      .withItem("Nod", "565578437802")
+      .withRequester("Jones", "Stuart", "6837502674015").create());
+
+    createRequest(new RequestRequestBuilder()
+      .withItem("The Hobbit", "565578437804")
+      .withRequester("Jones", "Stuart", "6837502674015").create());
+
+    JsonObject byItemBarcode = searchForRequestsPage(
+      "item.barcode==565578437802", "");
+
+    assertThat(byItemBarcode.getJsonArray("requests").size(), is(2));
+    assertThat(byItemBarcode.getInteger("totalRecords"), is(2));
+
+    JsonObject byRequesterBarcode = searchForRequestsPage(
+      "requester.barcode==6837502674015", "");
+
+    assertThat(byRequesterBarcode.getJsonArray("requests").size(), is(2));
+    assertThat(byRequesterBarcode.getInteger("totalRecords"), is(2));
+
+    JsonObject fullPage = searchForRequestsPage(
+      "requester.barcode==6837502674015", "&limit=1");
+
+    assertThat(fullPage.getJsonArray("requests").size(), is(1));
+    assertThat(fullPage.getInteger("totalRecords"), is(2));
+
+    JsonObject lastPage = searchForRequestsPage(
+      "requester.barcode==6837502674015", "&limit=1&offset=1");
+
+    assertThat(lastPage.getJsonArray("requests").size(), is(1));
+    assertThat(lastPage.getInteger("totalRecords"), is(2));
+
+    assertThat(fullPage.getJsonArray("requests").getJsonObject(0).getString("id"),
+      not(lastPage.getJsonArray("requests").getJsonObject(0).getString("id")));
+
+    //Not an exact match, so is translated by CQL2PgJSON rather than
+    //looked up in the barcode index
+    JsonObject byWord = searchForRequestsPage("item.barcode=565578437802", "");
+
+    assertThat(byWord.getJsonArray("requests").size(), is(2));
+    assertThat(byWord.getInteger("totalRecords"), is(2));
+
+    JsonObject noMatch = searchForRequestsPage("item.barcode==000000", "");
+
+    assertThat(noMatch.getJsonArray("requests").size(), is(0));
+    assertThat(noMatch.getInteger("totalRecords"), is(0));
+  }
+
+  @Test
+  public void findingRequestsByBarcodeUsesAnIndex()
+    throws Exception {
+
+    String schema = String.format("%s_%s",
+      StorageTestSuite.TENANT_ID, "mod_circulation_storage");
+
+    assertThat(StorageTestSuite.indexedQueryPlan(String.format(
+      "SELECT request.jsonb FROM %s.request %s", schema,
+      RequestsAPI.barcodeFilter("item.barcode", "565578437802"))),
+      containsString("request_item_barcode_idx"));
+
+    assertThat(StorageTestSuite.indexedQueryPlan(String.format(
+      "SELECT request.jsonb FROM %s.request %s", schema,
+      RequestsAPI.barcodeFilter("requester.barcode", "6837502674015"))),
+      containsString("request_requester_barcode_idx"));
+  }
+
+  @Test
+  public void canRemoveExpiredRequests()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException,
+    UnsupportedEncodingException {
+
+    UUID requestExpired = UUID.randomUUID();
+    UUID holdShelfExpired = UUID.randomUUID();
+    UUID notExpired = UUID.randomUUID();
+    UUID noExpiration = UUID.randomUUID();
+
+    createRequest(new RequestRequestBuilder().withId(requestExpired)
+      .withRequestExpiration(new LocalDate(2017, 7, 25)).create());
+
+    createRequest(new RequestRequestBuilder().withId(holdShelfExpired)
+      .withRequestExpiration(new LocalDate(2017, 9, 1))
+      .withHoldShelfExpiration(new LocalDate(2017, 7, 31)).create());
+
+    createRequest(new RequestRequestBuilder().withId(notExpired)
+      .withRequestExpiration(new LocalDate(2017, 8, 1))
+      .withHoldShelfExpiration(new LocalDate(2017, 8, 3)).create());
+
+    createRequest(new RequestRequestBuilder().withId(noExpiration).create());
+
+    CompletableFuture<JsonResponse> deleteCompleted = new CompletableFuture<>();
+
+    client.delete(StorageTestSuite.storageUrl(
+      "/request-storage/expired-requests?expiredBefore=2017-08-01"),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(deleteCompleted));
+
+    JsonResponse deleteResponse = deleteCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to remove expired requests: %s",
+      deleteResponse.getBody()),
+      deleteResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    JsonObject removed = deleteResponse.getJson();
+
+    assertThat(removed.getInteger("totalRecords"), is(2));
+    assertThat(removed.getJsonArray("requestIds").contains(
+      requestExpired.toString()), is(true));
+    assertThat(removed.getJsonArray("requestIds").contains(
+      holdShelfExpired.toString()), is(true));
+
+    assertThat(getById(requestExpired).getStatusCode(),
+      is(HttpURLConnection.HTTP_NOT_FOUND));
+    assertThat(getById(holdShelfExpired).getStatusCode(),
+      is(HttpURLConnection.HTTP_NOT_FOUND));
+    assertThat(getById(notExpired).getStatusCode(),
+      is(HttpURLConnection.HTTP_OK));
+    assertThat(getById(noExpiration).getStatusCode(),
+      is(HttpURLConnection.HTTP_OK));
+  }
+
+  @Test
+  public void removingExpiredRequestsIsLimited()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    for(int index = 0; index < 3; index++) {
+      createRequest(new RequestRequestBuilder()
+        .withRequestExpiration(new LocalDate(2017, 7, 25)).create());
+    }
+
+    JsonObject firstRemoved = removeExpiredRequests(
+      "expiredBefore=2017-08-01&limit=2");
+
+    assertThat(firstRemoved.getInteger("totalRecords"), is(2));
+    assertThat(firstRemoved.getJsonArray("requestIds").size(), is(2));
+
+    JsonObject secondRemoved = removeExpiredRequests(
+      "expiredBefore=2017-08-01&limit=2");
+
+    assertThat(secondRemoved.getInteger("totalRecords"), is(1));
+    assertThat(secondRemoved.getJsonArray("requestIds").size(), is(1));
+  }
+
+  @Test
+  public void findingExpiredRequestsUsesAnIndex()
+    throws Exception {
+
+    String plan = StorageTestSuite.indexedQueryPlan(
+      RequestsAPI.expiredRequestsDelete(StorageTestSuite.TENANT_ID,
+        RequestsAPI.expiredCondition(new LocalDate(2017, 8, 1)), 1000));
+
+    assertThat(plan, containsString("request_request_expiration_date_idx"));
+    assertThat(plan, containsString("request_hold_shelf_expiration_date_idx"));
+  }
+
+  @Test
+  public void canGetTheRequestQueueForAnItem()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    UUID itemId = UUID.randomUUID();
+    UUID otherItemId = UUID.randomUUID();
+
+    DateTime firstRequestDate = new DateTime(2017, 7, 22, 10, 22, 54, DateTimeZone.UTC);
+
+    UUID thirdInQueue = UUID.randomUUID();
+    UUID firstInQueue = UUID.randomUUID();
+    UUID secondInQueue = UUID.randomUUID();
+
+    createRequest(new RequestRequestBuilder().withId(thirdInQueue)
+      .withItemId(itemId).withRequestDate(firstRequestDate.plusDays(3)).create());
+
+    createRequest(new RequestRequestBuilder().withId(firstInQueue)
+      .withItemId(itemId).withRequestDate(firstRequestDate).create());
+
+    createRequest(new RequestRequestBuilder()
+      .withItemId(otherItemId).withRequestDate(firstRequestDate.plusDays(1)).create());
+
+    createRequest(new RequestRequestBuilder().withId(secondInQueue)
+      .withItemId(itemId).withRequestDate(firstRequestDate.plusHours(5)).create());
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture<>();
+
+    client.get(StorageTestSuite.storageUrl(String.format(
+      "/request-storage/request-queues/%s", itemId)),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    JsonResponse getResponse = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to get request queue: %s",
+      getResponse.getBody()),
+      getResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    JsonObject queue = getResponse.getJson();
+
+    assertThat(queue.getString("itemId"), is(itemId.toString()));
+    assertThat(queue.getInteger("totalRecords"), is(3));
+
+    JsonArray entries = queue.getJsonArray("requests");
+
+    assertThat(entries.size(), is(3));
+
+    UUID[] expectedOrder = { firstInQueue, secondInQueue, thirdInQueue };
+
+    for(int index = 0; index < expectedOrder.length; index++) {
+      JsonObject entry = entries.getJsonObject(index);
+
+      assertThat(entry.getInteger("position"), is(index + 1));
+      assertThat(entry.getJsonObject("request").getString("id"),
+        is(expectedOrder[index].toString()));
+    }
+  }
+
+  @Test
+  public void requestQueueIsEmptyForAnItemWithNoRequests()
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    createRequest(new RequestRequestBuilder().withItemId(UUID.randomUUID()).create());
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture<>();
+
+    client.get(StorageTestSuite.storageUrl(String.format(
+      "/request-storage/request-queues/%s", UUID.randomUUID())),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    JsonResponse getResponse = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(getResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+    assertThat(getResponse.getJson().getJsonArray("requests").size(), is(0));
+    assertThat(getResponse.getJson().getInteger("totalRecords"), is(0));
+  }
+
   @Test
   public void canDeleteARequest()
     throws InterruptedException,
@@ -721,6 +1120,27 @@ public class RequestsApiTest {
     return StorageTestSuite.storageUrl("/request-storage/requests" + subPath);
   }
 
+  private JsonObject removeExpiredRequests(String queryString)
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException {
+
+    CompletableFuture<JsonResponse> deleteCompleted = new CompletableFuture<>();
+
+    client.delete(StorageTestSuite.storageUrl(
+      "/request-storage/expired-requests?" + queryString),
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(deleteCompleted));
+
+    JsonResponse deleteResponse = deleteCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to remove expired requests: %s",
+      deleteResponse.getBody()),
+      deleteResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    return deleteResponse.getJson();
+  }
+
   private JsonResponse createRequest(JsonObject requestRequest)
     throws MalformedURLException,
     InterruptedException,
@@ -741,6 +1161,38 @@ public class RequestsApiTest {
     return postResponse;
   }
 
+  private JsonArray searchForRequests(String query)
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException,
+    UnsupportedEncodingException {
+
+    return searchForRequestsPage(query, "").getJsonArray("requests");
+  }
+
+  private JsonObject searchForRequestsPage(String query, String paging)
+    throws MalformedURLException,
+    InterruptedException,
+    ExecutionException,
+    TimeoutException,
+    UnsupportedEncodingException {
+
+    CompletableFuture<JsonResponse> getCompleted = new CompletableFuture<>();
+
+    client.get(requestStorageUrl() + "?query="
+        + URLEncoder.encode(query, "UTF-8") + paging,
+      StorageTestSuite.TENANT_ID, ResponseHandler.json(getCompleted));
+
+    JsonResponse getResponse = getCompleted.get(5, TimeUnit.SECONDS);
+
+    assertThat(String.format("Failed to search for requests: %s",
+      getResponse.getBody()),
+      getResponse.getStatusCode(), is(HttpURLConnection.HTTP_OK));
+
+    return getResponse.getJson();
+  }
+
   private JsonResponse getById(UUID id)
     throws MalformedURLException,
     InterruptedException,
@@ -156,6 +156,45 @@ public class StorageTestSuite {
     }
   }
 
+  static ResultSet executeSql(String sql)
+    throws InterruptedException, ExecutionException, TimeoutException {
+
+    PostgresClient dbClient = PostgresClient.getInstance(
+      getVertx(), TENANT_ID);
+
+    CompletableFuture<ResultSet> selectCompleted = new CompletableFuture();
+
+    dbClient.select(sql, result -> {
+      if(result.succeeded()) {
+        selectCompleted.complete(result.result());
+      }
+      else {
+        selectCompleted.completeExceptionally(result.cause());
+      }
+    });
+
+    return selectCompleted.get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return the plan for the query when sequential scans are avoided, so
+   * that it shows whether an index can be used even for small tables
+   */
+  static String indexedQueryPlan(String sql)
+    throws InterruptedException, ExecutionException, TimeoutException {
+
+    String schema = String.format("%s_%s", TENANT_ID, "mod_circulation_storage");
+
+    executeSql(String.format(
+      "CREATE OR REPLACE FUNCTION %s.explain_without_sequential_scans(query text)" +
+        " RETURNS SETOF text AS $$ BEGIN RETURN QUERY EXECUTE 'EXPLAIN ' || query; END $$" +
+        " LANGUAGE plpgsql SET enable_seqscan = off", schema));
+
+    return executeSql(String.format(
+      "SELECT %s.explain_without_sequential_scans(%s)", schema,
+      "'" + sql.replace("'", "''") + "'")).getResults().toString();
+  }
+
   private static ResultSet getRecordsWithUnmatchedIds(String tenantId,
                                                      String tableName)
     throws InterruptedException, ExecutionException, TimeoutException {
@@ -0,0 +1,130 @@
+package org.folio.rest.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class CqlTranslationCacheTest {
+
+  private final List<String> translated = new ArrayList<>();
+
+  private final CqlTranslationCache cache = new CqlTranslationCache(10,
+    cql -> {
+      translated.add(cql);
+
+      return new IndexedCqlTranslator("loan")
+        .withIndexedProperty("userId")
+        .withIndexedProperty("status.name")
+        .withIndexedProperty("dueDate")
+        .toSql(cql);
+    });
+
+  @Test
+  public void queriesWithTheSameShapeAreOnlyTranslatedOnce() throws Exception {
+    assertThat(cache.translate(
+      "userId==\"cf23adf0-61ba-4887-bf82-956c4aae2260\" and status.name==Open"),
+      is("WHERE loan.jsonb->>'userId' = 'cf23adf0-61ba-4887-bf82-956c4aae2260'"
+        + " AND loan.jsonb->'status'->>'name' = 'Open'"));
+
+    assertThat(cache.translate(
+      "userId==\"9b1fe5ec-4c70-4b8b-8f77-7d0e8b9c2b6a\" and status.name==Open"),
+      is("WHERE loan.jsonb->>'userId' = '9b1fe5ec-4c70-4b8b-8f77-7d0e8b9c2b6a'"
+        + " AND loan.jsonb->'status'->>'name' = 'Open'"));
+
+    assertThat(translated.size(), is(1));
+    assertThat(cache.getHits(), is(1L));
+  }
+
+  @Test
+  public void termsOtherThanUuidsArePartOfTheShape() throws Exception {
+    assertThat(cache.translate("status.name==Open"),
+      is("WHERE loan.jsonb->'status'->>'name' = 'Open'"));
+
+    assertThat(cache.translate("status.name==Closed"),
+      is("WHERE loan.jsonb->'status'->>'name' = 'Closed'"));
+
+    assertThat(translated.size(), is(2));
+  }
+
+  @Test
+  public void termsThatNeedEscapingArePartOfTheShape() throws Exception {
+    assertThat(cache.translate("userId==o'neill"),
+      is("WHERE loan.jsonb->>'userId' = 'o''neill'"));
+
+    assertThat(cache.translate("userId==o'brien"),
+      is("WHERE loan.jsonb->>'userId' = 'o''brien'"));
+
+    assertThat(translated.size(), is(2));
+  }
+
+  @Test
+  public void queriesThatCannotBeTranslatedAreCached() throws Exception {
+    assertThat(cache.translate(
+      "returnDate=cf23adf0-61ba-4887-bf82-956c4aae2260"), is(nullValue()));
+    assertThat(cache.translate(
+      "returnDate=9b1fe5ec-4c70-4b8b-8f77-7d0e8b9c2b6a"), is(nullValue()));
+
+    assertThat(translated.size(), is(1));
+  }
+
+  @Test
+  public void uuidTermsHaveADifferentShapeToOtherTerms() throws Exception {
+    CqlTranslationCache columnCache = new CqlTranslationCache(10,
+      cql -> {
+        translated.add(cql);
+
+        return new IndexedCqlTranslator("loan")
+          .withColumn("userId", "user_id", "uuid")
+          .toSql(cql);
+      });
+
+    assertThat(columnCache.translate(
+      "userId=cf23adf0-61ba-4887-bf82-956c4aae2260"),
+      is("WHERE loan.user_id = 'cf23adf0-61ba-4887-bf82-956c4aae2260'::uuid"));
+
+    assertThat(columnCache.translate("userId==legacy-user"),
+      is("WHERE loan.jsonb->>'userId' = 'legacy-user'"));
+
+    assertThat(columnCache.translate(
+      "userId=9b1fe5ec-4c70-4b8b-8f77-7d0e8b9c2b6a"),
+      is("WHERE loan.user_id = '9b1fe5ec-4c70-4b8b-8f77-7d0e8b9c2b6a'::uuid"));
+
+    assertThat(translated.size(), is(2));
+  }
+
+  @Test
+  public void termsContainingPlaceholderTextAreNotSubstituted()
+    throws Exception {
+
+    assertThat(cache.translate("userId==\"cf23adf0-61ba-4887-bf82-956c4aae2260\""
+        + " and status.name==\"00000000-0000-0000-0000-000000000000\""),
+      is("WHERE loan.jsonb->>'userId' = 'cf23adf0-61ba-4887-bf82-956c4aae2260'"
+        + " AND loan.jsonb->'status'->>'name'"
+        + " = '00000000-0000-0000-0000-000000000000'"));
+
+    assertThat(cache.translate("userId==00000000-0000-0000-0000-000000000001"
+        + " and status.name==\"a-00000000-0000-0000-0000-000000000000-b\""),
+      is("WHERE loan.jsonb->>'userId' = '00000000-0000-0000-0000-000000000001'"
+        + " AND loan.jsonb->'status'->>'name'"
+        + " = 'a-00000000-0000-0000-0000-000000000000-b'"));
+
+    assertThat(cache.translate("status.name==cqlterm0x"
+        + " and userId==\"9b1fe5ec-4c70-4b8b-8f77-7d0e8b9c2b6a\""),
+      is("WHERE loan.jsonb->'status'->>'name' = 'cqlterm0x'"
+        + " AND loan.jsonb->>'userId' = '9b1fe5ec-4c70-4b8b-8f77-7d0e8b9c2b6a'"));
+
+    assertThat("queries containing placeholders are not cached",
+      cache.getMisses(), is(1L));
+  }
+
+  @Test
+  public void noQueryIsNotCached() throws Exception {
+    assertThat(cache.translate(null), is(""));
+    assertThat(cache.getMisses(), is(0L));
+  }
+}
@@ -0,0 +1,78 @@
+package org.folio.rest.impl;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class ExpiringCacheTest {
+
+  private final AtomicLong now = new AtomicLong(1000);
+
+  private final ExpiringCache<String, String> cache =
+    new ExpiringCache<>(2, 5000, now::get);
+
+  @Test
+  public void countsHitsAndMisses() {
+    assertThat(cache.get("a"), is(nullValue()));
+
+    cache.put("a", "first", cache.generation());
+
+    assertThat(cache.get("a"), is("first"));
+    assertThat(cache.get("a"), is("first"));
+
+    assertThat(cache.getHits(), is(2L));
+    assertThat(cache.getMisses(), is(1L));
+  }
+
+  @Test
+  public void evictsExpiredEntries() {
+    cache.put("a", "first", cache.generation());
+
+    now.addAndGet(5000);
+
+    assertThat(cache.get("a"), is(nullValue()));
+    assertThat(cache.getEvictions(), is(1L));
+    assertThat(cache.size(), is(0));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntryWhenFull() {
+    cache.put("a", "first", cache.generation());
+    cache.put("b", "second", cache.generation());
+
+    cache.get("a");
+
+    cache.put("c", "third", cache.generation());
+
+    assertThat(cache.get("b"), is(nullValue()));
+    assertThat(cache.get("a"), is("first"));
+    assertThat(cache.get("c"), is("third"));
+    assertThat(cache.getEvictions(), is(1L));
+  }
+
+  @Test
+  public void valuesReadBeforeAnInvalidationAreNotCached() {
+    long generation = cache.generation();
+
+    cache.invalidate("a");
+
+    cache.put("a", "outdated", generation);
+
+    assertThat(cache.get("a"), is(nullValue()));
+  }
+
+  @Test
+  public void canInvalidateMatchingEntries() {
+    cache.put("tenant/a", "first", cache.generation());
+    cache.put("other/a", "second", cache.generation());
+
+    cache.invalidateIf(key -> key.startsWith("tenant/"));
+
+    assertThat(cache.get("tenant/a"), is(nullValue()));
+    assertThat(cache.get("other/a"), is("second"));
+  }
+}
@@ -0,0 +1,145 @@
+package org.folio.rest.impl;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class IndexedCqlTranslatorTest {
+
+  private final IndexedCqlTranslator translator =
+    new IndexedCqlTranslator("loan")
+      .withIndexedProperty("userId")
+      .withIndexedProperty("status.name")
+      .withIndexedProperty("dueDate")
+      .withContainmentProperty("action");
+
+  @Test
+  public void noQueryHasNoFilter() {
+    assertThat(translator.toSql(null), is(""));
+  }
+
+  @Test
+  public void translatesIndexedPropertiesToIndexExpressions() {
+    assertThat(translator.toSql(
+      "userId==\"cf23adf0-61ba-4887-bf82-956c4aae2260\" and status.name==Open"),
+      is("WHERE loan.jsonb->>'userId' = 'cf23adf0-61ba-4887-bf82-956c4aae2260'"
+        + " AND loan.jsonb->'status'->>'name' = 'Open'"));
+  }
+
+  @Test
+  public void translatesRangeAndSortOnIndexedProperty() {
+    assertThat(translator.toSql(
+      "dueDate < \"2017-07-27T10:23:43.000Z\" sortBy dueDate/sort.descending"),
+      is("WHERE loan.jsonb->>'dueDate' < '2017-07-27T10:23:43.000Z'"
+        + " ORDER BY loan.jsonb->>'dueDate' DESC"));
+  }
+
+  @Test
+  public void translatesContainmentProperties() {
+    assertThat(translator.toSql("action==checkedout"),
+      is("WHERE loan.jsonb @> '{\"action\":\"checkedout\"}'"));
+  }
+
+  @Test
+  public void escapesQuotesInTerms() {
+    assertThat(translator.toSql("userId==o'neill"),
+      is("WHERE loan.jsonb->>'userId' = 'o''neill'"));
+  }
+
+  @Test
+  public void translatesPropertiesWithColumnsToTypedComparisons() {
+    IndexedCqlTranslator columnTranslator = new IndexedCqlTranslator("loan")
+      .withColumn("userId", "user_id", "uuid")
+      .withColumn("dueDate", "due_date", "timestamptz");
+
+    assertThat(columnTranslator.toSql(
+      "userId=\"cf23adf0-61ba-4887-bf82-956c4aae2260\"" +
+        " and dueDate < \"2017-07-27T10:23:43.000Z\" sortBy dueDate"),
+      is("WHERE loan.user_id = 'cf23adf0-61ba-4887-bf82-956c4aae2260'::uuid"
+        + " AND loan.due_date < '2017-07-27T10:23:43.000Z'::timestamptz"
+        + " ORDER BY loan.due_date"));
+  }
+
+  @Test
+  public void comparesTermsThatDoNotFitTheColumnTypeWithTheJson() {
+    IndexedCqlTranslator columnTranslator = new IndexedCqlTranslator("loan")
+      .withColumn("userId", "user_id", "uuid");
+
+    assertThat(columnTranslator.toSql("userId==not-a-uuid"),
+      is("WHERE loan.jsonb->>'userId' = 'not-a-uuid'"));
+  }
+
+  @Test
+  public void cannotTranslateWordMatches() {
+    assertThat(translator.toSql("status.name=open"), is(nullValue()));
+    assertThat(translator.toSql("action=checkedout"), is(nullValue()));
+  }
+
+  @Test
+  public void translatesWordMatchesOfUuidsOnUuidColumns() {
+    IndexedCqlTranslator columnTranslator = new IndexedCqlTranslator("loan")
+      .withColumn("userId", "user_id", "uuid")
+      .withColumn("status.name", "status_name", "text");
+
+    assertThat(columnTranslator.toSql(
+      "userId=CF23ADF0-61BA-4887-BF82-956C4AAE2260"),
+      is("WHERE loan.user_id = 'CF23ADF0-61BA-4887-BF82-956C4AAE2260'::uuid"));
+
+    assertThat(columnTranslator.toSql("userId=not-a-uuid"), is(nullValue()));
+    assertThat(columnTranslator.toSql("status.name=Open"), is(nullValue()));
+  }
+
+  @Test
+  public void onlyExactMatchesAreEqualityTerms() {
+    assertThat(translator.equalityTerms("status.name=Open"), is(nullValue()));
+    assertThat(translator.equalityTerms("status.name==Open").get("status.name"),
+      is("Open"));
+  }
+
+  @Test
+  public void cannotTranslateUnindexedProperties() {
+    assertThat(translator.toSql("returnDate=2017"), is(nullValue()));
+  }
+
+  @Test
+  public void cannotTranslateTruncatedTerms() {
+    assertThat(translator.toSql("userId=cf23*"), is(nullValue()));
+  }
+
+  @Test
+  public void cannotTranslateOr() {
+    assertThat(translator.toSql("userId=a or userId=b"), is(nullValue()));
+  }
+
+  @Test
+  public void narrowsUntranslatableQueriesByEqualityTerms() throws Exception {
+    assertThat(translator.narrowed(
+      "userId==cf23adf0-61ba-4887-bf82-956c4aae2260 and status.name=Open",
+      cql -> "fallback"),
+      is("loan.jsonb->>'userId' = 'cf23adf0-61ba-4887-bf82-956c4aae2260'"
+        + " AND (fallback)"));
+  }
+
+  @Test
+  public void narrowingKeepsTheSortingOfTheFallback() throws Exception {
+    assertThat(translator.narrowed(
+      "userId==cf23adf0-61ba-4887-bf82-956c4aae2260 and status.name=Open" +
+        " sortBy dueDate",
+      cql -> cql.contains("sortBy") ? "fallback ORDER BY due" : "fallback"),
+      is("loan.jsonb->>'userId' = 'cf23adf0-61ba-4887-bf82-956c4aae2260'"
+        + " AND (fallback) ORDER BY due"));
+  }
+
+  @Test
+  public void cannotNarrowByRangesOrAlternatives() throws Exception {
+    assertThat(translator.narrowed(
+      "dueDate < 2017-07-27 and status.name=Open", cql -> "fallback"),
+      is("fallback"));
+
+    assertThat(translator.narrowed(
+      "userId==a or status.name=Open", cql -> "fallback"),
+      is("fallback"));
+  }
+}
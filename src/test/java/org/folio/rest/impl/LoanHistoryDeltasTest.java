@@ -0,0 +1,81 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class LoanHistoryDeltasTest {
+
+  private static final JsonObject LOAN = new JsonObject()
+    .put("id", "3a0e4d0e-6d2b-4cb3-9f5b-f4f0bb5a4c3e")
+    .put("action", "checkedout")
+    .put("dueDate", "2017-03-20T00:00:00Z")
+    .put("status", new JsonObject().put("name", "Open"));
+
+  @Test
+  public void snapshotIsTheWholeDocument() {
+    JsonObject version = LoanHistoryDeltas.apply(null, snapshot(LOAN));
+
+    assertThat(version, is(LOAN));
+  }
+
+  @Test
+  public void changedPropertiesAreAppliedToThePreviousVersion() {
+    JsonObject version = LoanHistoryDeltas.apply(LOAN, delta(new JsonObject()
+      .put("action", "renewed")
+      .put("renewalCount", 1), null));
+
+    assertThat(version.getString("action"), is("renewed"));
+    assertThat(version.getInteger("renewalCount"), is(1));
+    assertThat(version.getString("dueDate"), is("2017-03-20T00:00:00Z"));
+    assertThat(version.getJsonObject("status").getString("name"), is("Open"));
+  }
+
+  @Test
+  public void removedPropertiesAreRemovedFromThePreviousVersion() {
+    JsonObject version = LoanHistoryDeltas.apply(LOAN, delta(new JsonObject(),
+      new JsonArray().add("dueDate")));
+
+    assertThat(version.containsKey("dueDate"), is(false));
+    assertThat(version.getString("action"), is("checkedout"));
+  }
+
+  @Test
+  public void previousVersionIsNotChanged() {
+    LoanHistoryDeltas.apply(LOAN, delta(new JsonObject()
+      .put("action", "renewed"), new JsonArray().add("dueDate")));
+
+    assertThat(LOAN.getString("action"), is("checkedout"));
+    assertThat(LOAN.containsKey("dueDate"), is(true));
+  }
+
+  @Test
+  public void changesWithoutAPreviousVersionAreReturnedAsStored() {
+    JsonObject changes = new JsonObject().put("action", "renewed");
+
+    assertThat(LoanHistoryDeltas.apply(null, delta(changes, null)), is(changes));
+  }
+
+  private static JsonArray snapshot(JsonObject document) {
+    return new JsonArray().add("1").add("2017-03-06 16:04:43.123")
+      .add(document.encode()).add(true).addNull()
+      .add(document.getString("id"));
+  }
+
+  private static JsonArray delta(JsonObject changes, JsonArray removedKeys) {
+    JsonArray row = new JsonArray().add("2").add("2017-03-07 16:04:43.123")
+      .add(changes.encode()).add(false);
+
+    if(removedKeys == null) {
+      row.addNull();
+    }
+    else {
+      row.add(removedKeys.encode());
+    }
+
+    return row.add(LOAN.getString("id"));
+  }
+}
@@ -0,0 +1,76 @@
+package org.folio.rest.impl;
+
+import org.folio.rest.jaxrs.model.LoanRules;
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class LoanRulesCacheTest {
+
+  private final LoanRulesCache cache = new LoanRulesCache();
+
+  @Test
+  public void loanRulesAreCachedWithTheirVersion() {
+    cache.put("tenant", 3, loanRules("fallback-policy: a"));
+
+    LoanRulesCache.CachedLoanRules cached = cache.get("tenant");
+
+    assertThat(cached, is(notNullValue()));
+    assertThat(cached.getVersion(), is(3L));
+    assertThat(cached.getLoanRules().getLoanRulesAsTextFile(),
+      is("fallback-policy: a"));
+  }
+
+  @Test
+  public void loanRulesAreCachedPerTenant() {
+    cache.put("tenant", 3, loanRules("fallback-policy: a"));
+
+    assertThat(cache.get("other"), is(nullValue()));
+  }
+
+  @Test
+  public void laterVersionReplacesCachedLoanRules() {
+    cache.put("tenant", 3, loanRules("fallback-policy: a"));
+    cache.put("tenant", 4, loanRules("fallback-policy: b"));
+
+    assertThat(cache.get("tenant").getVersion(), is(4L));
+  }
+
+  @Test
+  public void loanRulesReadAtAnEarlierVersionAreNotCached() {
+    cache.put("tenant", 4, loanRules("fallback-policy: b"));
+
+    LoanRulesCache.CachedLoanRules outdated = cache.put("tenant", 3,
+      loanRules("fallback-policy: a"));
+
+    assertThat(outdated.getETag(), is(notNullValue()));
+    assertThat(cache.get("tenant").getVersion(), is(4L));
+  }
+
+  @Test
+  public void eTagChangesWhenLoanRulesChange() {
+    assertThat(LoanRulesCache.eTag(loanRules("fallback-policy: a")),
+      is(LoanRulesCache.eTag(loanRules("fallback-policy: a"))));
+
+    assertThat(LoanRulesCache.eTag(loanRules("fallback-policy: a")),
+      is(not(LoanRulesCache.eTag(loanRules("fallback-policy: b")))));
+  }
+
+  @Test
+  public void ifNoneMatchCanListSeveralETags() {
+    assertThat(LoanRulesCache.matches("\"a\", W/\"b\"", "\"b\""), is(true));
+    assertThat(LoanRulesCache.matches("*", "\"b\""), is(true));
+    assertThat(LoanRulesCache.matches("\"a\"", "\"b\""), is(false));
+    assertThat(LoanRulesCache.matches(null, "\"b\""), is(false));
+  }
+
+  private LoanRules loanRules(String loanRulesAsTextFile) {
+    LoanRules loanRules = new LoanRules();
+    loanRules.setLoanRulesAsTextFile(loanRulesAsTextFile);
+    return loanRules;
+  }
+}
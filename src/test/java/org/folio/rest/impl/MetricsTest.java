@@ -0,0 +1,121 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.Future;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class MetricsTest {
+
+  @Test
+  public void responsesArePassedOnAndCountedForTheEndpointAndTenant() {
+    AtomicBoolean handled = new AtomicBoolean();
+
+    Metrics.recorded("getMetricsTestRecords", "metrics_test", response ->
+      handled.set(true))
+      .handle(Future.succeededFuture(Response.status(200).build()));
+
+    Metrics.recorded("getMetricsTestRecords", "metrics_test", response -> { })
+      .handle(Future.succeededFuture(Response.status(500).build()));
+
+    Metrics.recorded("getMetricsTestRecords", "metrics_test", response -> { })
+      .handle(Future.failedFuture("Failed"));
+
+    assertThat(handled.get(), is(true));
+
+    String metrics = Metrics.prometheus("metrics_test");
+
+    assertThat(metrics, containsString(
+      "circulation_storage_requests_total{endpoint=\"getMetricsTestRecords\",tenant=\"metrics_test\"} 3\n"));
+
+    assertThat(metrics, containsString(
+      "circulation_storage_errors_total{endpoint=\"getMetricsTestRecords\",tenant=\"metrics_test\"} 2\n"));
+
+    assertThat(metrics, containsString(
+      "circulation_storage_request_duration_seconds_count{endpoint=\"getMetricsTestRecords\",tenant=\"metrics_test\"} 3\n"));
+  }
+
+  @Test
+  public void latencyBucketsAreCumulative() {
+    Metrics.record("getMetricsTestLatency", "metrics_test",
+      TimeUnit.MICROSECONDS.toNanos(500), false);
+
+    Metrics.record("getMetricsTestLatency", "metrics_test",
+      TimeUnit.MILLISECONDS.toNanos(30), false);
+
+    Metrics.record("getMetricsTestLatency", "metrics_test",
+      TimeUnit.SECONDS.toNanos(20), false);
+
+    String metrics = Metrics.prometheus("metrics_test");
+
+    String bucket = "circulation_storage_request_duration_seconds_bucket" +
+      "{endpoint=\"getMetricsTestLatency\",tenant=\"metrics_test\",le=\"%s\"} %s\n";
+
+    assertThat(metrics, containsString(String.format(bucket, "0.001", 1)));
+    assertThat(metrics, containsString(String.format(bucket, "0.02", 1)));
+    assertThat(metrics, containsString(String.format(bucket, "0.05", 2)));
+    assertThat(metrics, containsString(String.format(bucket, "10.0", 2)));
+    assertThat(metrics, containsString(String.format(bucket, "+Inf", 3)));
+
+    assertThat(metrics, containsString(
+      "circulation_storage_request_duration_seconds_sum{endpoint=\"getMetricsTestLatency\",tenant=\"metrics_test\"} 20.030500\n"));
+  }
+
+  @Test
+  public void latencyOnABucketBoundIsCountedInThatBucket() {
+    Metrics.record("getMetricsTestBound", "metrics_test",
+      TimeUnit.MILLISECONDS.toNanos(20), false);
+
+    String metrics = Metrics.prometheus("metrics_test");
+
+    String bucket = "circulation_storage_request_duration_seconds_bucket" +
+      "{endpoint=\"getMetricsTestBound\",tenant=\"metrics_test\",le=\"%s\"} %s\n";
+
+    assertThat(metrics, containsString(String.format(bucket, "0.01", 0)));
+    assertThat(metrics, containsString(String.format(bucket, "0.02", 1)));
+  }
+
+  @Test
+  public void onlyTheMetricsOfTheTenantAreIncluded() {
+    Metrics.record("getMetricsTestTenants", "metrics_test", 0, false);
+    Metrics.record("getMetricsTestTenants", "metrics_test_other", 0, false);
+
+    Metrics.recordDatabase("getMetricsTestTenants", "metrics_test_other",
+      "execution", 0);
+
+    String metrics = Metrics.prometheus("metrics_test");
+
+    assertThat(metrics, containsString(
+      "circulation_storage_requests_total{endpoint=\"getMetricsTestTenants\",tenant=\"metrics_test\"} 1\n"));
+
+    assertThat(metrics, not(containsString("metrics_test_other")));
+  }
+
+  @Test
+  public void cacheCountersAreIncluded() {
+    Metrics.registerCache("metrics_test_cache", () -> 7, () -> 3);
+
+    String metrics = Metrics.prometheus("metrics_test");
+
+    assertThat(metrics, containsString(
+      "circulation_storage_cache_hits_total{cache=\"metrics_test_cache\"} 7\n"));
+
+    assertThat(metrics, containsString(
+      "circulation_storage_cache_misses_total{cache=\"metrics_test_cache\"} 3\n"));
+  }
+
+  @Test
+  public void labelValuesAreEscaped() {
+    Metrics.record("getMetricsTestEscaping", "a\"b\\c", 0, false);
+
+    assertThat(Metrics.prometheus("a\"b\\c"), containsString(
+      "tenant=\"a\\\"b\\\\c\""));
+  }
+}
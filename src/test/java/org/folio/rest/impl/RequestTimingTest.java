@@ -0,0 +1,103 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class RequestTimingTest {
+
+  @Test
+  public void translationIsTimedAndTheQueryKeptForTheSlowQueryLog()
+    throws Exception {
+
+    RequestTiming timing = new RequestTiming("getTimingTestLoans", "timing_test");
+
+    String sql = timing.translate("userId=abc", cql -> "WHERE " + cql);
+
+    timing.executed("SELECT 1", TimeUnit.MILLISECONDS.toNanos(3), 2);
+    timing.executed("SELECT 2", TimeUnit.MILLISECONDS.toNanos(4), 3);
+
+    JsonObject slowQuery = timing.slowQuery(0);
+
+    assertThat(sql, is("WHERE userId=abc"));
+    assertThat(slowQuery.getString("endpoint"), is("getTimingTestLoans"));
+    assertThat(slowQuery.getString("tenant"), is("timing_test"));
+    assertThat(slowQuery.getString("cql"), is("userId=?"));
+    assertThat(slowQuery.getJsonArray("sql"),
+      is(new JsonArray().add("SELECT 1").add("SELECT 2")));
+    assertThat(slowQuery.getLong("rows"), is(5L));
+    assertThat(slowQuery.getDouble("executionMilliseconds"), is(7.0));
+  }
+
+  @Test
+  public void valuesAreRedactedFromTheSlowQueryLog() throws Exception {
+    RequestTiming timing = new RequestTiming("postTimingTestLoans", "timing_test");
+
+    timing.translate(
+      "requester.lastName==\"O'Neill \\\"Jr\\\"\" and status.name=Open sortBy requestDate",
+      cql -> "");
+
+    timing.executed("INSERT INTO loan (_id, jsonb) VALUES" +
+      " ('0f2c1ea5-0c5b-4a5d-9c5f-9b0f8e8c3a11', '{\"userName\":\"O''Neill\"}')" +
+      " LIMIT 10", 0, 1);
+
+    JsonObject slowQuery = timing.slowQuery(0);
+
+    assertThat(slowQuery.getString("cql"),
+      is("requester.lastName==? and status.name=? sortBy requestDate"));
+
+    assertThat(slowQuery.getJsonArray("sql"), is(new JsonArray()
+      .add("INSERT INTO loan (_id, jsonb) VALUES (?, ?) LIMIT 10")));
+  }
+
+  @Test
+  public void phasesAreRecordedWhenTheRequestResponds() {
+    RequestTiming timing = new RequestTiming("getTimingTestPhases",
+      "timing_test", Long.MAX_VALUE);
+
+    AtomicBoolean handled = new AtomicBoolean();
+
+    timing.executed("SELECT 1", TimeUnit.MILLISECONDS.toNanos(30), 1);
+
+    timing.recorded(response -> handled.set(true))
+      .handle(Future.succeededFuture(Response.status(200).build()));
+
+    String metrics = Metrics.prometheus("timing_test");
+
+    assertThat(handled.get(), is(true));
+
+    String count = "circulation_storage_database_duration_seconds_count" +
+      "{endpoint=\"getTimingTestPhases\",tenant=\"timing_test\",phase=\"%s\"} 1\n";
+
+    assertThat(metrics, containsString(String.format(count, "translation")));
+    assertThat(metrics, containsString(String.format(count, "execution")));
+    assertThat(metrics, containsString(String.format(count, "mapping")));
+
+    assertThat(metrics, containsString(
+      "circulation_storage_database_duration_seconds_bucket" +
+        "{endpoint=\"getTimingTestPhases\",tenant=\"timing_test\"," +
+        "phase=\"execution\",le=\"0.05\"} 1\n"));
+  }
+
+  @Test
+  public void phasesAreNotRecordedForRequestsWithoutDatabaseWork() {
+    RequestTiming timing = new RequestTiming("getTimingTestNoDatabase",
+      "timing_test");
+
+    timing.recorded(response -> { })
+      .handle(Future.succeededFuture(Response.status(200).build()));
+
+    assertThat(Metrics.prometheus("timing_test"), not(containsString(
+      "database_duration_seconds_count{endpoint=\"getTimingTestNoDatabase\"")));
+  }
+}
@@ -0,0 +1,25 @@
+package org.folio.rest.impl;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class SqlTest {
+
+  @Test
+  public void literalIsQuoted() {
+    assertThat(Sql.literal("Open"), is("'Open'"));
+  }
+
+  @Test
+  public void quotesInLiteralsAreDoubled() {
+    assertThat(Sql.literal("o'neill"), is("'o''neill'"));
+  }
+
+  @Test
+  public void jsonIsQuotedAsItIs() {
+    assertThat(Sql.literal("{\"title\":\"it's a \\\\ test\"}"),
+      is("'{\"title\":\"it''s a \\\\ test\"}'"));
+  }
+}
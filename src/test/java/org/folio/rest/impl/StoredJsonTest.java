@@ -0,0 +1,51 @@
+package org.folio.rest.impl;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class StoredJsonTest {
+
+  private static final String FIRST_LOAN =
+    "{\"id\": \"3a0e4d0e-6d2b-4cb3-9f5b-f4f0bb5a4c3e\", \"action\": \"checkedout\"}";
+
+  private static final String SECOND_LOAN =
+    "{\"id\": \"b5c1b9c2-3f5e-4e9a-8a3d-2f6c3b7d9e01\", \"action\": \"renewed\"}";
+
+  @Test
+  public void recordsAreWrappedInACollection() {
+    JsonObject collection = new JsonObject(StoredJson.collection("loans",
+      Arrays.asList(FIRST_LOAN, SECOND_LOAN), 2, null));
+
+    assertThat(collection.getJsonArray("loans").size(), is(2));
+    assertThat(collection.getJsonArray("loans").getJsonObject(0),
+      is(new JsonObject(FIRST_LOAN)));
+    assertThat(collection.getJsonArray("loans").getJsonObject(1),
+      is(new JsonObject(SECOND_LOAN)));
+    assertThat(collection.getInteger("totalRecords"), is(2));
+    assertThat(collection.containsKey("next"), is(false));
+  }
+
+  @Test
+  public void totalRecordsIsLeftOutWhenNotCounted() {
+    JsonObject collection = new JsonObject(StoredJson.collection("loans",
+      Collections.singletonList(FIRST_LOAN), null, KeysetCursor.next("abc")));
+
+    assertThat(collection.containsKey("totalRecords"), is(false));
+    assertThat(collection.getString("next"), is(KeysetCursor.next("abc")));
+  }
+
+  @Test
+  public void emptyCollectionHasAnEmptyArray() {
+    JsonObject collection = new JsonObject(StoredJson.collection("requests",
+      Collections.emptyList(), 0, null));
+
+    assertThat(collection.getJsonArray("requests").size(), is(0));
+    assertThat(collection.getInteger("totalRecords"), is(0));
+  }
+}
@@ -11,6 +11,8 @@ import io.vertx.core.logging.LoggerFactory;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
 import java.util.UUID;
 
 public class HttpClient {
@@ -144,9 +146,18 @@ public class HttpClient {
                   String tenantId,
                   Handler<HttpClientResponse> responseHandler) {
 
+    get(url, tenantId, Collections.emptyMap(), responseHandler);
+  }
+
+  public void get(String url,
+                  String tenantId,
+                  Map<String, String> headers,
+                  Handler<HttpClientResponse> responseHandler) {
+
     HttpClientRequest request = client.getAbs(url, responseHandler);
 
     request.headers().add("Accept","application/json");
+    request.headers().addAll(headers);
 
     if(tenantId != null) {
       request.headers().add(TENANT_HEADER, tenantId);